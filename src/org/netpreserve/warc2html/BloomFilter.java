@@ -0,0 +1,92 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+/**
+ * A fixed-size Bloom filter over strings. Lookups never give false negatives and give false positives at roughly the
+ * rate the filter was sized for.
+ */
+class BloomFilter {
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+
+    private BloomFilter(long numBits, int numHashes) {
+        this.bits = new long[(int) ((numBits + 63) / 64)];
+        this.numBits = bits.length * 64L;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Creates a filter sized for the given number of entries and false-positive rate, but no larger than maxBytes
+     * (and never smaller than 8 bytes).
+     */
+    static BloomFilter create(long expectedEntries, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("false-positive rate must be between 0 and 1");
+        }
+        long entries = Math.max(1, expectedEntries);
+        long numBits = (long) Math.ceil(-entries * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        // the filter is stored as whole 64-bit words, so round the cap down to one
+        long maxBits = Math.min(maxBytes, Integer.MAX_VALUE * 8L) / 8 * 64;
+        numBits = Math.max(64, Math.min(numBits, maxBits));
+        long optimalHashes = Math.round(-Math.log(falsePositiveRate) / Math.log(2));
+        int numHashes = (int) Math.max(1, Math.min(optimalHashes, Math.round((double) numBits / entries * Math.log(2))));
+        return new BloomFilter(numBits, numHashes);
+    }
+
+    void add(CharSequence value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(CharSequence value) {
+        long hash1 = hash(value);
+        long hash2 = mix(hash1 ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long sizeInBytes() {
+        return bits.length * 8L;
+    }
+
+    int numHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Estimates the false-positive rate once the given number of entries have been added.
+     */
+    double expectedFalsePositiveRate(long entries) {
+        return Math.pow(1 - Math.exp(-numHashes * (double) entries / numBits), numHashes);
+    }
+
+    private static long hash(CharSequence value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53e6b53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Path and URL-key index for collections too large to hold in memory. Resources and redirects are spilled to sorted
+ * runs on disk as they're loaded and {@link #build()} merges them into on-disk tables: resources ordered by output
+ * path, URL keys mapped to paths and redirects by URL key. Path collisions are numbered and duplicate URL keys resolved
+ * during the merge with the same rules, and the same results, as the in-memory index. Resolved redirects are merged
+ * into the URL-key table afterwards by {@link #addAliases(Iterator)}.
+ * <p>
+ * Collision numbering depends on load order and on every path already taken, including ones that merely look numbered
+ * (foo~1.html). Such paths can only ever collide with paths of the same family, the path with any ~N suffixes removed
+ * from its basename, so the merge visits resources family by family in load order and replays the in-memory rule on
+ * each family. Only the paths of one family are held in memory at a time.
+ * <p>
+ * The memory budget is split between the stages of the build: loaded resources and redirects are each spilled at half
+ * the budget and merged within a quarter of it, while the path and URL-key tables are sorted with a quarter each.
+ */
+class ExternalIndex implements Closeable {
+    /**
+     * The smallest budget that leaves each of the sorts used to build the tables enough memory to merge.
+     */
+    static final long MIN_MEMORY_BUDGET = 4 * ExternalSorter.MIN_MEMORY_BUDGET;
+    private static final Pattern NUMBERED_SUFFIX = Pattern.compile("(?:~[0-9]+)+$");
+    private static final Comparator<Entry> BY_FAMILY = Comparator.<Entry, String>comparing(e -> e.family, String.CASE_INSENSITIVE_ORDER)
+            .thenComparingLong(e -> e.seq);
+    private static final Comparator<Entry> BY_PATH = Comparator.<Entry, String>comparing(e -> e.resource.path, String.CASE_INSENSITIVE_ORDER)
+            .thenComparingLong(e -> e.seq);
+    private static final Comparator<Entry> BY_URL_KEY = Comparator.<Entry, String>comparing(e -> e.urlKey)
+            .thenComparingLong(e -> e.seq);
+    private static final ExternalSorter.Codec<Resource> RESOURCE_CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutput out, Resource resource) throws IOException {
+            ExternalSorter.writeString(out, resource.url);
+            out.writeLong(resource.instant.getEpochSecond());
+            out.writeInt(resource.instant.getNano());
+            out.writeInt(resource.status);
+            ExternalSorter.writeString(out, resource.type);
+            ExternalSorter.writeString(out, resource.warc);
+            out.writeLong(resource.offset);
+            out.writeLong(resource.length);
+            ExternalSorter.writeString(out, resource.locationHeader);
+            ExternalSorter.writeString(out, resource.path);
+        }
+
+        @Override
+        public Resource read(DataInput in) throws IOException {
+            Resource resource = new Resource(ExternalSorter.readString(in),
+                    Instant.ofEpochSecond(in.readLong(), in.readInt()),
+                    in.readInt(),
+                    ExternalSorter.readString(in),
+                    ExternalSorter.readString(in),
+                    in.readLong(),
+                    in.readLong(),
+                    ExternalSorter.readString(in));
+            resource.path = ExternalSorter.readString(in);
+            return resource;
+        }
+    };
+    private static final ExternalSorter.Codec<Entry> ENTRY_CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutput out, Entry entry) throws IOException {
+            RESOURCE_CODEC.write(out, entry.resource);
+            ExternalSorter.writeString(out, entry.urlKey);
+            out.writeLong(entry.seq);
+        }
+
+        @Override
+        public Entry read(DataInput in) throws IOException {
+            return new Entry(RESOURCE_CODEC.read(in), ExternalSorter.readString(in), in.readLong());
+        }
+    };
+    private static final ExternalSorter.Codec<String> STRING_CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutput out, String value) throws IOException {
+            ExternalSorter.writeString(out, value);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return ExternalSorter.readString(in);
+        }
+    };
+
+    private final long memoryBudget;
+    private final Path dir;
+    private ExternalSorter<Entry> loaded;
+    private ExternalSorter<Entry> loadedRedirects;
+    private long seq;
+    private SortedTable<Resource> resourcesByPath;
+    private SortedTable<String> pathsByUrlKey;
+    private SortedTable<Resource> redirectsByUrlKey;
+
+    /**
+     * @param memoryBudget approximate number of bytes of resources to buffer before spilling a sorted run to disk
+     * @param tempDir      where to put the runs and tables
+     */
+    ExternalIndex(long memoryBudget, Path tempDir) throws IOException {
+        if (memoryBudget < MIN_MEMORY_BUDGET) {
+            throw new IllegalArgumentException("index memory must be at least " + MIN_MEMORY_BUDGET + " bytes");
+        }
+        this.memoryBudget = memoryBudget;
+        this.dir = Files.createTempDirectory(tempDir, "warc2html-index");
+        dir.toFile().deleteOnExit();
+        this.loaded = new ExternalSorter<>(BY_FAMILY, ENTRY_CODEC, memoryBudget / 2, ExternalIndex::sizeEstimate, dir);
+        this.loadedRedirects = new ExternalSorter<>(BY_URL_KEY, ENTRY_CODEC, memoryBudget / 2, ExternalIndex::sizeEstimate, dir);
+    }
+
+    private static long sizeEstimate(Entry entry) {
+        Resource resource = entry.resource;
+        return 256 + 2L * (resource.url.length() + resource.type.length() + resource.warc.length()
+                + resource.path.length() + entry.urlKey.length()
+                + (resource.locationHeader == null ? 0 : resource.locationHeader.length()));
+    }
+
+    /**
+     * Adds a resource whose path has not yet been made unique.
+     */
+    void add(Resource resource, String urlKey) throws IOException {
+        if (loaded == null) {
+            throw new IllegalStateException("index already built");
+        }
+        loaded.add(new Entry(resource, urlKey, seq++));
+    }
+
+    /**
+     * Adds a redirect. Of several redirects with the same URL key the latest capture is kept.
+     */
+    void addRedirect(Resource resource, String urlKey) throws IOException {
+        if (loadedRedirects == null) {
+            throw new IllegalStateException("index already built");
+        }
+        loadedRedirects.add(new Entry(resource, urlKey, seq++));
+    }
+
+    boolean isBuilt() {
+        return loaded == null;
+    }
+
+    /**
+     * Merges the loaded runs into the path, URL-key and redirect tables.
+     */
+    void build() throws IOException {
+        if (loaded == null) {
+            return;
+        }
+
+        redirectsByUrlKey = writeRedirects(loadedRedirects);
+        loadedRedirects.close();
+        loadedRedirects = null;
+
+        try (ExternalSorter<Entry> byPath = new ExternalSorter<>(BY_PATH, ENTRY_CODEC, memoryBudget / 4, ExternalIndex::sizeEstimate, dir);
+             ExternalSorter<Entry> byUrlKey = new ExternalSorter<>(BY_URL_KEY, ENTRY_CODEC, memoryBudget / 4, ExternalIndex::sizeEstimate, dir)) {
+            assignUniquePaths(byPath, byUrlKey);
+            loaded.close();
+            loaded = null;
+
+            resourcesByPath = writePaths(byPath);
+            pathsByUrlKey = writeUrlKeys(byUrlKey);
+        }
+    }
+
+    /**
+     * Returns the family of a path: the path with any ~N collision suffixes removed from the end of its basename.
+     * Numbering a path always yields a path of the same family.
+     */
+    static String family(String path) {
+        String[] basenameAndExtension = PathUtils.splitExtension(path);
+        return NUMBERED_SUFFIX.matcher(basenameAndExtension[0]).replaceFirst("") + basenameAndExtension[1];
+    }
+
+    /**
+     * Gives every resource a unique path exactly as Warc2Html.ensureUniquePath would have had they been added in load
+     * order: a path already taken gets the lowest free ~N suffix.
+     */
+    private void assignUniquePaths(ExternalSorter<Entry> byPath, ExternalSorter<Entry> byUrlKey) throws IOException {
+        try (ExternalSorter<Entry>.MergeIterator it = loaded.sorted()) {
+            String family = null;
+            Set<String> taken = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            // the lowest suffix that might still be free for each path, as taken paths are never released
+            Map<String, Long> nextSuffix = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (family == null || !family.equalsIgnoreCase(entry.family)) {
+                    family = entry.family;
+                    taken.clear();
+                    nextSuffix.clear();
+                }
+                String path = entry.resource.path;
+                if (taken.contains(path)) {
+                    String[] basenameAndExtension = PathUtils.splitExtension(path);
+                    long suffix = nextSuffix.getOrDefault(path, 1L);
+                    String numbered = basenameAndExtension[0] + "~" + suffix + basenameAndExtension[1];
+                    while (taken.contains(numbered)) {
+                        suffix++;
+                        numbered = basenameAndExtension[0] + "~" + suffix + basenameAndExtension[1];
+                    }
+                    nextSuffix.put(path, suffix + 1);
+                    path = numbered;
+                    entry.resource.path = path;
+                }
+                taken.add(path);
+                byPath.add(entry);
+                byUrlKey.add(entry);
+            }
+        }
+    }
+
+    private SortedTable<String> writeUrlKeys(ExternalSorter<Entry> byUrlKey) throws IOException {
+        Path dataFile = tempFile("keys", ".dat");
+        Path offsetsFile = tempFile("keys", ".idx");
+        try (SortedTable.Writer<String> writer = new SortedTable.Writer<>(dataFile, offsetsFile, STRING_CODEC);
+             ExternalSorter<Entry>.MergeIterator it = byUrlKey.sorted()) {
+            Entry existing = null;
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (existing != null && !existing.urlKey.equals(entry.urlKey)) {
+                    writer.append(existing.urlKey, existing.resource.path);
+                    existing = null;
+                }
+                // same rule as Warc2Html.add(): a later capture replaces an earlier one unless it's older
+                if (existing == null || !entry.resource.instant.isBefore(existing.resource.instant)) {
+                    existing = entry;
+                }
+            }
+            if (existing != null) {
+                writer.append(existing.urlKey, existing.resource.path);
+            }
+        }
+        return new SortedTable<>(dataFile, offsetsFile, Comparator.naturalOrder(), STRING_CODEC);
+    }
+
+    private SortedTable<Resource> writeRedirects(ExternalSorter<Entry> byUrlKey) throws IOException {
+        Path dataFile = tempFile("redirects", ".dat");
+        Path offsetsFile = tempFile("redirects", ".idx");
+        try (SortedTable.Writer<Resource> writer = new SortedTable.Writer<>(dataFile, offsetsFile, RESOURCE_CODEC);
+             ExternalSorter<Entry>.MergeIterator it = byUrlKey.sorted()) {
+            Entry existing = null;
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (existing != null && !existing.urlKey.equals(entry.urlKey)) {
+                    writer.append(existing.urlKey, existing.resource);
+                    existing = null;
+                }
+                // same rule as Warc2Html.addRedirect()
+                if (existing == null || !entry.resource.instant.isBefore(existing.resource.instant)) {
+                    existing = entry;
+                }
+            }
+            if (existing != null) {
+                writer.append(existing.urlKey, existing.resource);
+            }
+        }
+        return new SortedTable<>(dataFile, offsetsFile, Comparator.naturalOrder(), RESOURCE_CODEC);
+    }
+
+    /**
+     * Merges URL keys resolved through redirects into the URL-key table. Aliases must come in key order; a key the
+     * table already has keeps its existing path. The aliases may be computed lazily from lookups in this index, as the
+     * old table stays open until the merge is done.
+     */
+    void addAliases(Iterator<Map.Entry<String, String>> aliases) throws IOException {
+        Path dataFile = tempFile("keys", ".dat");
+        Path offsetsFile = tempFile("keys", ".idx");
+        try (SortedTable.Writer<String> writer = new SortedTable.Writer<>(dataFile, offsetsFile, STRING_CODEC)) {
+            Iterator<Map.Entry<String, String>> keys = pathsByUrlKey.iterator();
+            Map.Entry<String, String> key = keys.hasNext() ? keys.next() : null;
+            Map.Entry<String, String> alias = aliases.hasNext() ? aliases.next() : null;
+            while (key != null || alias != null) {
+                int cmp = key == null ? 1 : alias == null ? -1 : key.getKey().compareTo(alias.getKey());
+                if (cmp <= 0) {
+                    writer.append(key.getKey(), key.getValue());
+                    key = keys.hasNext() ? keys.next() : null;
+                }
+                if (cmp >= 0) {
+                    if (cmp > 0) {
+                        writer.append(alias.getKey(), alias.getValue());
+                    }
+                    alias = aliases.hasNext() ? aliases.next() : null;
+                }
+            }
+        }
+        SortedTable<String> merged = new SortedTable<>(dataFile, offsetsFile, Comparator.naturalOrder(), STRING_CODEC);
+        pathsByUrlKey.delete();
+        pathsByUrlKey = merged;
+    }
+
+    private SortedTable<Resource> writePaths(ExternalSorter<Entry> byPath) throws IOException {
+        Path dataFile = tempFile("paths", ".dat");
+        Path offsetsFile = tempFile("paths", ".idx");
+        try (SortedTable.Writer<Resource> writer = new SortedTable.Writer<>(dataFile, offsetsFile, RESOURCE_CODEC);
+             ExternalSorter<Entry>.MergeIterator it = byPath.sorted()) {
+            while (it.hasNext()) {
+                Resource resource = it.next().resource;
+                writer.append(resource.path, resource);
+            }
+        }
+        return new SortedTable<>(dataFile, offsetsFile, String.CASE_INSENSITIVE_ORDER, RESOURCE_CODEC);
+    }
+
+    private Path tempFile(String prefix, String suffix) throws IOException {
+        Path file = Files.createTempFile(dir, prefix, suffix);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    /**
+     * Iterates over the resources in path order, streaming them from disk.
+     */
+    Iterable<Resource> resources() {
+        return () -> new Iterator<>() {
+            final Iterator<Map.Entry<String, Resource>> it = resourcesByPath.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Resource next() {
+                return it.next().getValue();
+            }
+        };
+    }
+
+    boolean containsPath(String path) throws IOException {
+        return resourcesByPath.get(path) != null;
+    }
+
+    String pathForUrlKey(String urlKey) throws IOException {
+        return pathsByUrlKey.get(urlKey);
+    }
+
+    /**
+     * Returns the redirect with the given URL key or null.
+     */
+    Resource redirect(String urlKey) throws IOException {
+        return redirectsByUrlKey.get(urlKey);
+    }
+
+    /**
+     * Iterates over the redirects in URL key order.
+     */
+    Iterable<Map.Entry<String, Resource>> redirects() {
+        return redirectsByUrlKey;
+    }
+
+    /**
+     * Iterates over the URL keys and the paths they map to in key order.
+     */
+    Iterable<Map.Entry<String, String>> urlKeys() {
+        return pathsByUrlKey;
+    }
+
+    /**
+     * Closes the tables and removes everything the index wrote to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        if (loaded != null) {
+            loaded.close();
+            loaded = null;
+        }
+        if (loadedRedirects != null) {
+            loadedRedirects.close();
+            loadedRedirects = null;
+        }
+        if (redirectsByUrlKey != null) {
+            redirectsByUrlKey.delete();
+        }
+        if (resourcesByPath != null) {
+            resourcesByPath.delete();
+        }
+        if (pathsByUrlKey != null) {
+            pathsByUrlKey.delete();
+        }
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private static class Entry {
+        final Resource resource;
+        final String urlKey;
+        final long seq;
+        final String family;
+
+        Entry(Resource resource, String urlKey, long seq) {
+            this.resource = resource;
+            this.urlKey = urlKey;
+            this.seq = seq;
+            this.family = family(resource.path);
+        }
+    }
+}
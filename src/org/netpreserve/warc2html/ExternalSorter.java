@@ -0,0 +1,237 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Sorts more values than fit in memory by spilling sorted runs to temporary files once the estimated size of the
+ * buffered values exceeds a budget, then k-way merging the runs. Values that compare equal come out in the order they
+ * were added.
+ * <p>
+ * The merge reads at most {@link #MAX_FAN_IN} runs at once, each through a stream buffer, and the buffers of a merge
+ * (plus one for the output of an intermediate pass) fit within half the budget. When there are more runs than that,
+ * they are first merged in extra passes into fewer, longer runs.
+ */
+class ExternalSorter<T> implements Closeable {
+    static final int MAX_FAN_IN = 128;
+    static final int MIN_STREAM_BUFFER_SIZE = 4 * 1024;
+    static final int MAX_STREAM_BUFFER_SIZE = 64 * 1024;
+    /**
+     * The smallest budget that leaves room to merge two runs at a time.
+     */
+    static final long MIN_MEMORY_BUDGET = 2 * 3 * MIN_STREAM_BUFFER_SIZE;
+
+    private final Comparator<T> comparator;
+    private final Codec<T> codec;
+    private final long memoryBudget;
+    private final ToLongFunction<T> sizeEstimate;
+    private final Path tempDir;
+    private final int fanIn;
+    private final int streamBufferSize;
+    private final List<T> buffer = new ArrayList<>();
+    private List<Path> runs = new ArrayList<>();
+    private long bufferedBytes;
+
+    ExternalSorter(Comparator<T> comparator, Codec<T> codec, long memoryBudget, ToLongFunction<T> sizeEstimate, Path tempDir) {
+        if (memoryBudget < MIN_MEMORY_BUDGET) {
+            throw new IllegalArgumentException("sort memory budget must be at least " + MIN_MEMORY_BUDGET + " bytes");
+        }
+        this.comparator = comparator;
+        this.codec = codec;
+        this.memoryBudget = memoryBudget;
+        this.sizeEstimate = sizeEstimate;
+        this.tempDir = tempDir;
+        long mergeMemory = memoryBudget / 2;
+        this.fanIn = (int) Math.max(2, Math.min(MAX_FAN_IN, mergeMemory / MIN_STREAM_BUFFER_SIZE - 1));
+        this.streamBufferSize = (int) Math.max(MIN_STREAM_BUFFER_SIZE, Math.min(MAX_STREAM_BUFFER_SIZE, mergeMemory / (fanIn + 1)));
+    }
+
+    /**
+     * The most runs merged at once.
+     */
+    int fanIn() {
+        return fanIn;
+    }
+
+    void add(T value) throws IOException {
+        buffer.add(value);
+        bufferedBytes += sizeEstimate.applyAsLong(value);
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(comparator);
+        runs.add(writeRun(buffer.iterator()));
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    private Path writeRun(Iterator<T> values) throws IOException {
+        Path run = Files.createTempFile(tempDir, "run", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), streamBufferSize))) {
+            while (values.hasNext()) {
+                out.writeBoolean(true);
+                codec.write(out, values.next());
+            }
+            out.writeBoolean(false);
+        }
+        return run;
+    }
+
+    /**
+     * Merges consecutive groups of runs into single runs until no more than fanIn are left. Merging neighbours keeps
+     * values that compare equal in the order they were added.
+     */
+    private void reduceRuns() throws IOException {
+        while (runs.size() > fanIn) {
+            List<Path> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<Path> group = runs.subList(i, Math.min(i + fanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                try (MergeIterator it = new MergeIterator(group)) {
+                    merged.add(writeRun(it));
+                }
+                for (Path run : group) {
+                    Files.delete(run);
+                }
+            }
+            runs = merged;
+        }
+    }
+
+    /**
+     * Returns the number of runs on disk.
+     */
+    int runCount() {
+        return runs.size();
+    }
+
+    /**
+     * Returns an iterator over everything added so far in sorted order. May be called more than once.
+     */
+    MergeIterator sorted() throws IOException {
+        spill();
+        reduceRuns();
+        return new MergeIterator(runs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+    }
+
+    class MergeIterator implements Iterator<T>, Closeable {
+        private final List<DataInputStream> inputs = new ArrayList<>();
+        private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+        private MergeIterator(List<Path> runs) throws IOException {
+            try {
+                for (Path run : runs) {
+                    DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), streamBufferSize));
+                    inputs.add(input);
+                    advance(inputs.size() - 1);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private void advance(int run) throws IOException {
+            DataInputStream input = inputs.get(run);
+            if (input.readBoolean()) {
+                heads.add(new Head(codec.read(input), run));
+            } else {
+                input.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            try {
+                advance(head.run);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return head.value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (DataInputStream input : inputs) {
+                input.close();
+            }
+        }
+
+        private class Head implements Comparable<Head> {
+            final T value;
+            final int run;
+
+            Head(T value, int run) {
+                this.value = value;
+                this.run = run;
+            }
+
+            @Override
+            public int compareTo(Head other) {
+                int cmp = comparator.compare(value, other.value);
+                return cmp != 0 ? cmp : Integer.compare(run, other.run);
+            }
+        }
+    }
+
+    interface Codec<T> {
+        void write(DataOutput out, T value) throws IOException;
+
+        T read(DataInput in) throws IOException;
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
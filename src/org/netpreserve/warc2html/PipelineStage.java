@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the export pipeline. Submitting blocks once {@code capacity} tasks are queued or running so that a slow
+ * stage pushes back on the stage feeding it instead of letting work pile up in memory.
+ */
+class PipelineStage {
+    private final ExecutorService executor;
+    private final Semaphore slots;
+
+    private PipelineStage(ExecutorService executor, int capacity) {
+        this.executor = executor;
+        this.slots = new Semaphore(capacity);
+    }
+
+    /**
+     * A stage for CPU-bound work running on a fixed pool of platform threads.
+     */
+    static PipelineStage fixed(String name, int threads, int capacity) {
+        return new PipelineStage(Executors.newFixedThreadPool(threads, threadFactory(name)), capacity);
+    }
+
+    /**
+     * A stage for blocking I/O running on virtual threads when the JVM supports them (Java 21+) and on a cached pool
+     * of platform threads otherwise.
+     */
+    static PipelineStage io(String name, int capacity) {
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool(threadFactory(name));
+        }
+        return new PipelineStage(executor, capacity);
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    void submit(Runnable task) throws InterruptedException {
+        slots.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for all submitted tasks to finish. Tasks may still submit to downstream stages
+     * while this runs, so stages must be completed in pipeline order.
+     */
+    void awaitCompletion() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // keep waiting
+        }
+    }
+
+    /**
+     * Abandons queued tasks and interrupts running ones. Does nothing once the stage has completed.
+     */
+    void shutdownNow() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Reads the byte ranges of upcoming records on a background thread so that they're already in the OS page cache by
+ * the time the export reaches them. The data itself is discarded.
+ * <p>
+ * The export visits records in output path order, which jumps around the WARC files. Upcoming records are therefore
+ * scheduled in batches of half the window, and each batch is sorted by WARC file and offset and nearby ranges merged so
+ * that the disk sees a few large sequential reads rather than one small read per record.
+ */
+class ReadAhead implements Closeable {
+    /**
+     * Ranges separated by less than this are read as one, as reading the gap is cheaper than seeking over it.
+     */
+    static final long MAX_GAP = 64 * 1024;
+
+    private final Iterator<Resource> upcoming;
+    private final int window;
+    private final ReadBufferPool buffers;
+    private final Function<String, Path> resolver;
+    private final AtomicLong current = new AtomicLong(-1);
+    private long scheduled = -1;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "warc2html-read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // only used on the read-ahead thread
+    private Path openPath;
+    private FileChannel openChannel;
+
+    /**
+     * @param upcoming a separate iterator over the same resources, in the same order, as the export
+     */
+    ReadAhead(Iterator<Resource> upcoming, int window, ReadBufferPool buffers, Function<String, Path> resolver) {
+        this.upcoming = upcoming;
+        this.window = window;
+        this.buffers = buffers;
+        this.resolver = resolver;
+    }
+
+    /**
+     * Notes that the export has reached the given index and, once less than half the window is left scheduled ahead of
+     * it, schedules read-ahead of the records up to the end of the window.
+     */
+    void advance(long index) {
+        current.set(index);
+        if (scheduled - index > window / 2) {
+            return;
+        }
+        List<Range> batch = new ArrayList<>();
+        while (scheduled < index + window && upcoming.hasNext()) {
+            Resource resource = upcoming.next();
+            long target = ++scheduled;
+            if (target > index) {
+                Path path = resolver.apply(resource.warc);
+                if (path != null && resource.length > 0) {
+                    batch.add(new Range(target, path, resource.offset, resource.offset + resource.length));
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            executor.execute(() -> prefetch(batch));
+        }
+    }
+
+    private void prefetch(List<Range> batch) {
+        long reached = current.get();
+        batch.removeIf(range -> range.index <= reached); // the export already caught up with these
+        ByteBuffer buffer = buffers.get(-1);
+        for (Range range : coalesce(batch)) {
+            try {
+                FileChannel channel = channel(range.path);
+                long position = range.start;
+                while (position < range.end) {
+                    buffer.clear();
+                    if (buffer.remaining() > range.end - position) {
+                        buffer.limit((int) (range.end - position));
+                    }
+                    int n = channel.read(buffer, position);
+                    if (n <= 0) {
+                        break;
+                    }
+                    position += n;
+                }
+            } catch (IOException e) {
+                // only a hint, the export will report any real error when it reads the record
+            }
+        }
+    }
+
+    /**
+     * Returns the channel for a WARC file, reusing the one already open if it's the same file.
+     */
+    private FileChannel channel(Path path) throws IOException {
+        if (!path.equals(openPath) || openChannel == null || !openChannel.isOpen()) {
+            closeChannel();
+            openChannel = FileChannel.open(path);
+            openPath = path;
+        }
+        return openChannel;
+    }
+
+    private void closeChannel() {
+        if (openChannel != null) {
+            try {
+                openChannel.close();
+            } catch (IOException e) {
+                // nothing was written
+            }
+            openChannel = null;
+        }
+    }
+
+    /**
+     * Sorts ranges by file and offset and merges those that overlap or lie within {@link #MAX_GAP} of each other.
+     */
+    static List<Range> coalesce(List<Range> ranges) {
+        List<Range> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparing((Range range) -> range.path).thenComparingLong(range -> range.start));
+        List<Range> merged = new ArrayList<>();
+        Range last = null;
+        for (Range range : sorted) {
+            if (last != null && last.path.equals(range.path) && range.start - last.end <= MAX_GAP) {
+                last = new Range(last.index, last.path, last.start, Math.max(last.end, range.end));
+                merged.set(merged.size() - 1, last);
+            } else {
+                last = range;
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeChannel();
+    }
+
+    static class Range {
+        final long index;
+        final Path path;
+        final long start;
+        final long end;
+
+        Range(long index, Path path, long start, long end) {
+            this.index = index;
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
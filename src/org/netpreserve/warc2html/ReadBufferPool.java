@@ -0,0 +1,47 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-thread pool of read buffers for WarcReader. Each thread reuses a single backing array of the maximum size and
+ * hands out a view sized to the record being read, so small records don't pull megabytes of neighbouring data off disk
+ * while long sequential scans still get large reads.
+ * <p>
+ * jwarc requires array-backed buffers so these are heap rather than direct buffers. A buffer must not be used after
+ * the next call to {@link #get(long)} on the same thread.
+ */
+class ReadBufferPool {
+    static final int MIN_SIZE = 8192;
+
+    private final int maxSize;
+    private final ThreadLocal<byte[]> arrays;
+
+    ReadBufferPool(int maxSize) {
+        if (maxSize < MIN_SIZE) {
+            throw new IllegalArgumentException("read buffer size must be at least " + MIN_SIZE + " bytes");
+        }
+        this.maxSize = maxSize;
+        this.arrays = ThreadLocal.withInitial(() -> new byte[maxSize]);
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns an empty buffer large enough to read a record of the given length in one go (or the maximum size if the
+     * length is unknown or larger).
+     */
+    ByteBuffer get(long length) {
+        int size = maxSize;
+        if (length > 0 && length < maxSize) {
+            size = (int) Math.max(MIN_SIZE, Long.highestOneBit(length - 1) << 1);
+            size = Math.min(size, maxSize);
+        }
+        return ByteBuffer.wrap(arrays.get(), 0, size).slice().flip();
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package org.netpreserve.warc2html;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An on-disk table of string keys to values, written in key order and searched with positional reads so that lookups
+ * don't need the table in memory. Each record is a length-prefixed key and value; a second file holds the offset of
+ * every record.
+ */
+class SortedTable<V> implements Iterable<Map.Entry<String, V>>, Closeable {
+    private final Path dataFile;
+    private final Path offsetsFile;
+    private final Comparator<String> comparator;
+    private final ExternalSorter.Codec<V> codec;
+    private final FileChannel data;
+    private final FileChannel offsets;
+    private final long size;
+
+    SortedTable(Path dataFile, Path offsetsFile, Comparator<String> comparator, ExternalSorter.Codec<V> codec) throws IOException {
+        this.dataFile = dataFile;
+        this.offsetsFile = offsetsFile;
+        this.comparator = comparator;
+        this.codec = codec;
+        this.data = FileChannel.open(dataFile);
+        this.offsets = FileChannel.open(offsetsFile);
+        this.size = offsets.size() / Long.BYTES;
+    }
+
+    long size() {
+        return size;
+    }
+
+    /**
+     * Returns the value for a key or null if it isn't in the table.
+     */
+    V get(String key) throws IOException {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            DataInput record = readRecord(readLong(offsets, mid * Long.BYTES));
+            int cmp = comparator.compare(ExternalSorter.readString(record), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return codec.read(record);
+            }
+        }
+        return null;
+    }
+
+    private DataInput readRecord(long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(readInt(data, position));
+        readFully(data, buffer, position + Integer.BYTES);
+        return new DataInputStream(new ByteArrayInputStream(buffer.array()));
+    }
+
+    private static long readLong(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        readFully(channel, buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
+        readFully(channel, buffer, position);
+        return buffer.getInt(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the table in key order. The underlying file is closed once the iterator is exhausted.
+     */
+    @Override
+    public Iterator<Map.Entry<String, V>> iterator() {
+        DataInputStream input;
+        try {
+            input = new DataInputStream(new BufferedInputStream(Files.newInputStream(dataFile), 64 * 1024));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (size == 0) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return new Iterator<>() {
+            long remaining = size;
+
+            @Override
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            @Override
+            public Map.Entry<String, V> next() {
+                if (remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    input.readInt(); // record length
+                    String key = ExternalSorter.readString(input);
+                    V value = codec.read(input);
+                    if (--remaining == 0) {
+                        input.close();
+                    }
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        data.close();
+        offsets.close();
+    }
+
+    /**
+     * Closes the table and removes its files.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(dataFile);
+        Files.deleteIfExists(offsetsFile);
+    }
+
+    static class Writer<V> implements Closeable {
+        private final ExternalSorter.Codec<V> codec;
+        private final DataOutputStream data;
+        private final DataOutputStream offsets;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final DataOutputStream recordOut = new DataOutputStream(record);
+        private long position;
+
+        Writer(Path dataFile, Path offsetsFile, ExternalSorter.Codec<V> codec) throws IOException {
+            this.codec = codec;
+            this.data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dataFile), 64 * 1024));
+            this.offsets = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(offsetsFile), 64 * 1024));
+        }
+
+        /**
+         * Appends a record. Records must be appended in key order.
+         */
+        void append(String key, V value) throws IOException {
+            record.reset();
+            ExternalSorter.writeString(recordOut, key);
+            codec.write(recordOut, value);
+            offsets.writeLong(position);
+            data.writeInt(record.size());
+            record.writeTo(data);
+            position += Integer.BYTES + record.size();
+        }
+
+        @Override
+        public void close() throws IOException {
+            data.close();
+            offsets.close();
+        }
+    }
+}
@@ -7,7 +7,11 @@ package org.netpreserve.warc2html;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+import org.netpreserve.jwarc.MessageHeaders;
+import org.netpreserve.jwarc.WarcCompression;
 import org.netpreserve.jwarc.WarcReader;
 import org.netpreserve.jwarc.WarcRecord;
 import org.netpreserve.jwarc.WarcResponse;
@@ -19,34 +23,90 @@ import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Instant;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
-
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.StreamSupport;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
 import static java.time.ZoneOffset.UTC;
 import static org.netpreserve.warc2html.LinkRewriter.rewriteCSS;
 import static org.netpreserve.warc2html.LinkRewriter.rewriteJS;
 
-public class Warc2Html {
+public class Warc2Html implements Closeable {
 
     private static final DateTimeFormatter ARC_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss", Locale.UK).withZone(UTC);
     private static final Map<String, String> DEFAULT_FORCED_EXTENSIONS = loadForcedExtensions();
+    private static final int MAX_WARC_HEADER_LENGTH = 64 * 1024;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 1024 * 1024;
+    private static final Pattern SIMPLE_HOST = Pattern.compile("[a-z0-9-]+(?:\\.[a-z0-9-]+)*");
+    private static final Pattern NUMERIC_LAST_LABEL = Pattern.compile("(?:^|\\.)(?:[0-9]+|0x[0-9a-f]*)$");
+    private static final Pattern WWW_PREFIX = Pattern.compile("^www[0-9]*\\.");
+    private static final Pattern SHARD_SPEC = Pattern.compile("([0-9]{1,9})/([1-9][0-9]{0,8})");
     private final Map<String, Resource> resourcesByUrlKey = new HashMap<>();
     private final Map<String, Resource> resourcesByPath = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final Map<String, Resource> redirectsByUrlKey = new HashMap<>();
     private final Map<String, String> forcedExtensions = new HashMap<>(DEFAULT_FORCED_EXTENSIONS);
     private String warcBaseLocation = "";
     private String rejectedPathsFilePath = "";
+    private String redirectMapFilePath = "";
+    private ReadBufferPool readBuffers = new ReadBufferPool(DEFAULT_READ_BUFFER_SIZE);
+    private int readAheadRecords = 0;
+    private int fetchThreads = Runtime.getRuntime().availableProcessors();
+    private int rewriteThreads = Runtime.getRuntime().availableProcessors();
+    private int queueSize = 2 * Runtime.getRuntime().availableProcessors();
+    private double linkFilterFalsePositiveRate = 0.01;
+    private long linkFilterMaxBytes = 64L * 1024 * 1024;
+    private BloomFilter linkFilter;
+    private int linkFilterEntries;
+    private final LongAdder linkFilterChecks = new LongAdder();
+    private final LongAdder linkFilterSkips = new LongAdder();
+    private int shardIndex = 0;
+    private int shardCount = 1;
+    private boolean shardByWarc = false;
+    private long indexMemory = 0;
+    private Path indexTempDir = Paths.get(System.getProperty("java.io.tmpdir"));
+    private ExternalIndex externalIndex;
 
     public static void main(String[] args) throws IOException {
         System.out.println("Initializing");
 
         Warc2Html warc2Html = new Warc2Html();
+        int exitCode;
+        try {
+            exitCode = run(warc2Html, args);
+        } finally {
+            // remove the on-disk index, however the run ended
+            warc2Html.close();
+        }
+        if (exitCode != 0) {
+            System.exit(exitCode);
+        }
+    }
+
+    /**
+     * Parses the command line and runs the conversion. Usage errors return an exit status instead of exiting so that
+     * main can remove the on-disk index first.
+     */
+    private static int run(Warc2Html warc2Html, String[] args) throws IOException {
         Path outputDir = Paths.get(".");
+        Path indexPath = null;
+        int mergeShards = 0;
 
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
@@ -54,7 +114,18 @@ public class Warc2Html {
                 case "--help":
                     System.out.println("Usage: warc2html [-o outdir] file1.warc [file2.warc ...]");
                     System.out.println("       warc2html [-o outdir] -b http://example.org/warcs/ file1.cdx [file2.cdx ...]");
-                    return;
+                    System.out.println("       warc2html [-o outdir] -rm redirects.map -wf warcdir/");
+                    System.out.println("Sharded: warc2html -wf warcdir/ --write-index index.jsonl");
+                    System.out.println("         warc2html -o outdir --read-index index.jsonl --shard i/n [--shard-by path|warc]");
+                    System.out.println("         warc2html -o outdir --read-index index.jsonl --merge-shards n");
+                    System.out.println("Large collections: --index-memory bytes [--index-temp-dir dir] before -wf");
+                    System.out.println("Tuning: --read-buffer-size bytes (default " + DEFAULT_READ_BUFFER_SIZE + ")");
+                    System.out.println("        --read-ahead records (default 0)");
+                    System.out.println("        --fetch-threads n, --rewrite-threads n (default: number of CPUs)");
+                    System.out.println("        --queue-size n (default: twice the number of CPUs)");
+                    System.out.println("        --link-filter-fpp rate (default 0.01, 0 disables the link filter)");
+                    System.out.println("        --link-filter-max-bytes bytes (default 64 MiB)");
+                    return 0;
                 case "-b":
                 case "--warc-base":
                     warc2Html.setWarcBaseLocation(args[++i]);
@@ -67,14 +138,76 @@ public class Warc2Html {
                 case "--rejected-paths":
                     warc2Html.setRejectedPathsFilePath(args[++i]);
                     break;
+                case "-rm":
+                case "--redirect-map":
+                    warc2Html.setRedirectMapFilePath(args[++i]);
+                    break;
+                case "--read-buffer-size":
+                    warc2Html.setReadBufferSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--read-ahead":
+                    warc2Html.setReadAheadRecords(Integer.parseInt(args[++i]));
+                    break;
+                case "--fetch-threads":
+                    warc2Html.setFetchThreads(Integer.parseInt(args[++i]));
+                    break;
+                case "--rewrite-threads":
+                    warc2Html.setRewriteThreads(Integer.parseInt(args[++i]));
+                    break;
+                case "--queue-size":
+                    warc2Html.setQueueSize(Integer.parseInt(args[++i]));
+                    break;
+                case "--link-filter-fpp":
+                    warc2Html.setLinkFilterFalsePositiveRate(Double.parseDouble(args[++i]));
+                    break;
+                case "--link-filter-max-bytes":
+                    warc2Html.setLinkFilterMaxBytes(Long.parseLong(args[++i]));
+                    break;
+                case "--write-index":
+                    indexPath = Paths.get(args[++i]);
+                    break;
+                case "--read-index":
+                    warc2Html.loadIndex(Paths.get(args[++i]));
+                    break;
+                case "--shard":
+                    Matcher shard = SHARD_SPEC.matcher(args[++i]);
+                    if (!shard.matches() || Integer.parseInt(shard.group(1)) >= Integer.parseInt(shard.group(2))) {
+                        System.err.println("warc2html: --shard must be i/n with 0 <= i < n: " + args[i]);
+                        return 1;
+                    }
+                    warc2Html.setShard(Integer.parseInt(shard.group(1)), Integer.parseInt(shard.group(2)));
+                    break;
+                case "--shard-by":
+                    if (!args[++i].equals("path") && !args[i].equals("warc")) {
+                        System.err.println("warc2html: --shard-by must be path or warc: " + args[i]);
+                        return 1;
+                    }
+                    warc2Html.setShardByWarc(args[i].equals("warc"));
+                    break;
+                case "--merge-shards":
+                    mergeShards = Integer.parseInt(args[++i]);
+                    break;
+                case "--index-memory":
+                case "--index-temp-dir":
+                    try {
+                        if (args[i].equals("--index-memory")) {
+                            warc2Html.setIndexMemory(Long.parseLong(args[++i]));
+                        } else {
+                            warc2Html.setIndexTempDir(Paths.get(args[++i]));
+                        }
+                    } catch (IllegalArgumentException | IllegalStateException e) {
+                        System.err.println("warc2html: " + args[i - 1] + ": " + e.getMessage());
+                        return 1;
+                    }
+                    break;
                 case "-wf":
                 case "--warc-folder":
-                    File[] files = new File(args[++i]).listFiles((dir, name) -> name.toLowerCase().endsWith(".warc.gz"));
+                    File[] files = new File(args[++i]).listFiles((dir, name) -> name.toLowerCase().endsWith(".warc.gz") || name.toLowerCase().endsWith(".warc"));
 
                     // Ensure files exist
                     if (files == null || files.length == 0) {
-                        System.out.println("No .warc.gz files found in the specified directory.");
-                        return;
+                        System.out.println("No .warc or .warc.gz files found in the specified directory.");
+                        return 0;
                     }
                     Arrays.sort(files);
                     for (int j = 0; j < files.length; j++) {
@@ -87,26 +220,40 @@ public class Warc2Html {
                     break;
                 default:
                     System.err.println("warc2html: unknown option: " + args[i]);
-                    System.exit(1);
-                    return;
+                    return 1;
             }
         }
 
-        // Run
-        JsonArray resourceArray = warc2Html.writeTo(outputDir);
+        // Collapse redirect chains so links point straight at their final destinations
+        warc2Html.resolveRedirects();
 
-        // Convert JsonArray to JSON and write to a file
-        System.out.println("-------------------");
+        // Coordinator of a sharded export: just write the index for the workers
+        if (indexPath != null) {
+            warc2Html.writeIndex(indexPath);
+            System.out.println("Index written to " + indexPath);
+            return 0;
+        }
+
+        // Run, streaming the resource log to a file as resources are written
+        Files.createDirectories(outputDir);
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String resources_log_path = outputDir.resolve("_leaf_warc_resources.json").toString();
-        try (FileWriter writer = new FileWriter(resources_log_path)) {
-            gson.toJson(resourceArray, writer);
-            System.out.println("JSON resourceArray file created successfully!");
-        } catch (IOException e) {
-            e.printStackTrace();
+        Path resourcesLogPath = outputDir.resolve(warc2Html.resourcesLogName());
+        try (JsonWriter writer = gson.newJsonWriter(Files.newBufferedWriter(resourcesLogPath, UTF_8))) {
+            writer.beginArray();
+            if (mergeShards > 0) {
+                for (JsonElement result : warc2Html.mergeShardLogs(outputDir, mergeShards)) {
+                    gson.toJson(result, writer);
+                }
+            } else {
+                warc2Html.writeTo(outputDir, result -> gson.toJson(result, writer));
+            }
+            writer.endArray();
         }
 
         System.out.println("-------------------");
+        System.out.println("JSON resourceArray file created successfully!");
+        System.out.println("-------------------");
+        return 0;
     }
 
     public static JsonObject loadRejectedPathsFromFile(String filePath) {
@@ -197,9 +344,262 @@ public class Warc2Html {
         this.rejectedPathsFilePath = rejectedPathsFilePath;
     }
 
-    private void load(String filename, InputStream stream) throws IOException {
+    public void setRedirectMapFilePath(String redirectMapFilePath) {
+        this.redirectMapFilePath = redirectMapFilePath;
+    }
+
+    /**
+     * Sets the largest read buffer used for WARC files. Reads of individual records use a buffer sized to the record,
+     * up to this limit.
+     */
+    public void setReadBufferSize(int readBufferSize) {
+        this.readBuffers = new ReadBufferPool(readBufferSize);
+    }
+
+    /**
+     * Sets how many upcoming records are read ahead on a background thread during export. Zero disables read-ahead.
+     */
+    public void setReadAheadRecords(int readAheadRecords) {
+        if (readAheadRecords < 0) {
+            throw new IllegalArgumentException("read-ahead must not be negative");
+        }
+        this.readAheadRecords = readAheadRecords;
+    }
+
+    /**
+     * Sets the number of threads reading and inflating WARC records during export.
+     */
+    public void setFetchThreads(int fetchThreads) {
+        if (fetchThreads < 1) {
+            throw new IllegalArgumentException("fetch threads must be at least 1");
+        }
+        this.fetchThreads = fetchThreads;
+    }
+
+    /**
+     * Sets the number of threads rewriting links in HTML, CSS and JavaScript during export.
+     */
+    public void setRewriteThreads(int rewriteThreads) {
+        if (rewriteThreads < 1) {
+            throw new IllegalArgumentException("rewrite threads must be at least 1");
+        }
+        this.rewriteThreads = rewriteThreads;
+    }
+
+    /**
+     * Sets how many resources may wait between export stages before the earlier stage blocks.
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queue size must be at least 1");
+        }
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Sets the target false-positive rate of the host filter used to skip links that leave the collection. Zero
+     * disables the filter.
+     */
+    public void setLinkFilterFalsePositiveRate(double linkFilterFalsePositiveRate) {
+        if (linkFilterFalsePositiveRate < 0 || linkFilterFalsePositiveRate >= 1) {
+            throw new IllegalArgumentException("link filter false-positive rate must be at least 0 and less than 1");
+        }
+        this.linkFilterFalsePositiveRate = linkFilterFalsePositiveRate;
+    }
+
+    /**
+     * Caps the memory used by the link filter. If the cap is smaller than the configured false-positive rate needs the
+     * filter is truncated and the actual rate will be higher.
+     */
+    public void setLinkFilterMaxBytes(long linkFilterMaxBytes) {
+        if (linkFilterMaxBytes < 8) {
+            throw new IllegalArgumentException("link filter must be at least 8 bytes");
+        }
+        this.linkFilterMaxBytes = linkFilterMaxBytes;
+    }
+
+    /**
+     * Builds the path index on disk instead of in memory, using roughly this many bytes of heap for sorting. This lets
+     * collections larger than the heap be exported. Zero keeps the index in memory. Must be set before anything is
+     * loaded, and the index's files are removed by {@link #close()}.
+     *
+     * @throws IllegalStateException if resources have already been loaded
+     */
+    public void setIndexMemory(long indexMemory) {
+        checkNothingLoaded("index memory");
+        if (indexMemory < 0 || (indexMemory > 0 && indexMemory < ExternalIndex.MIN_MEMORY_BUDGET)) {
+            throw new IllegalArgumentException("index memory must be 0 or at least " + ExternalIndex.MIN_MEMORY_BUDGET + " bytes");
+        }
+        this.indexMemory = indexMemory;
+    }
+
+    /**
+     * Sets the directory the on-disk index is built in.
+     *
+     * @throws IllegalStateException if resources have already been loaded
+     */
+    public void setIndexTempDir(Path indexTempDir) {
+        checkNothingLoaded("index temp dir");
+        this.indexTempDir = indexTempDir;
+    }
+
+    /**
+     * Resources loaded so far are already in one index or the other, so switching would silently drop them.
+     */
+    private void checkNothingLoaded(String option) {
+        if (externalIndex != null || !resourcesByPath.isEmpty() || !redirectsByUrlKey.isEmpty()) {
+            throw new IllegalStateException(option + " must be set before any WARC or CDX files are loaded");
+        }
+    }
+
+    /**
+     * Restricts export to one shard of the resources. Each of shardCount workers exports a disjoint shard into the same
+     * output directory.
+     */
+    public void setShard(int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("shard must be i/n with 0 <= i < n");
+        }
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * Assigns resources to shards by WARC filename rather than by output path, so each worker only reads its own WARCs.
+     */
+    public void setShardByWarc(boolean shardByWarc) {
+        this.shardByWarc = shardByWarc;
+    }
+
+    private boolean inShard(Resource resource) {
+        return shardCount == 1 || shardOf(shardByWarc ? resource.warc : resource.path, shardCount) == shardIndex;
+    }
+
+    private static int shardOf(String key, int shardCount) {
+        return Math.floorMod(key.hashCode(), shardCount);
+    }
+
+    String resourcesLogName() {
+        return shardCount == 1 ? "_leaf_warc_resources.json" : shardLogName(shardIndex, shardCount);
+    }
+
+    private static String shardLogName(int shardIndex, int shardCount) {
+        return "_leaf_warc_resources.shard-" + shardIndex + "-of-" + shardCount + ".json";
+    }
+
+    /**
+     * Writes the global index (resources with their unique output paths, URL keys and redirects) as JSON lines, so
+     * that workers of a sharded export all agree on where every resource goes.
+     */
+    public void writeIndex(Path file) throws IOException {
+        buildIndex();
+        Gson gson = new Gson();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, UTF_8)) {
+            for (Resource resource : indexedResources()) {
+                writer.write(gson.toJson(toIndexJson(resource)));
+                writer.write('\n');
+            }
+            for (Map.Entry<String, Resource> entry : redirects()) {
+                JsonObject json = toIndexJson(entry.getValue());
+                json.addProperty("redirectKey", entry.getKey());
+                writer.write(gson.toJson(json));
+                writer.write('\n');
+            }
+            for (Map.Entry<String, String> entry : urlKeyPaths()) {
+                JsonObject json = new JsonObject();
+                json.addProperty("key", entry.getKey());
+                json.addProperty("path", entry.getValue());
+                writer.write(gson.toJson(json));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Loads an index written by {@link #writeIndex(Path)} in place of loading WARC or CDX files.
+     */
+    public void loadIndex(Path file) throws IOException {
+        Gson gson = new Gson();
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                JsonObject json = gson.fromJson(line, JsonObject.class);
+                if (json.has("key")) {
+                    Resource resource = resourcesByPath.get(json.get("path").getAsString());
+                    if (resource == null) {
+                        throw new IOException("index key " + json.get("key") + " refers to unknown path " + json.get("path"));
+                    }
+                    resourcesByUrlKey.put(json.get("key").getAsString(), resource);
+                    continue;
+                }
+                Resource resource = new Resource(json.get("url").getAsString(),
+                        Instant.parse(json.get("instant").getAsString()),
+                        json.get("status").getAsInt(),
+                        json.get("type").getAsString(),
+                        json.get("warc").getAsString(),
+                        json.get("offset").getAsLong(),
+                        json.get("length").getAsLong(),
+                        json.has("location") ? json.get("location").getAsString() : null);
+                resource.path = json.get("path").getAsString();
+                if (json.has("redirectKey")) {
+                    redirectsByUrlKey.put(json.get("redirectKey").getAsString(), resource);
+                } else {
+                    resourcesByPath.put(resource.path, resource);
+                }
+            }
+        }
+    }
+
+    private static JsonObject toIndexJson(Resource resource) {
+        JsonObject json = new JsonObject();
+        json.addProperty("path", resource.path);
+        json.addProperty("url", resource.url);
+        json.addProperty("instant", resource.instant.toString());
+        json.addProperty("status", resource.status);
+        json.addProperty("type", resource.type);
+        json.addProperty("warc", resource.warc);
+        json.addProperty("offset", resource.offset);
+        json.addProperty("length", resource.length);
+        if (resource.locationHeader != null) {
+            json.addProperty("location", resource.locationHeader);
+        }
+        return json;
+    }
+
+    /**
+     * Combines the resource logs written by the workers of a sharded export into a single log in the same order a
+     * single-node export would produce. The per-shard logs are removed.
+     */
+    public JsonArray mergeShardLogs(Path outDir, int shardCount) throws IOException {
+        buildIndex();
+        Gson gson = new Gson();
+        Map<String, JsonObject> resultsByPath = new HashMap<>();
+        for (int i = 0; i < shardCount; i++) {
+            Path shardLog = outDir.resolve(shardLogName(i, shardCount));
+            try (Reader reader = Files.newBufferedReader(shardLog, UTF_8)) {
+                for (var element : gson.fromJson(reader, JsonArray.class)) {
+                    JsonObject result = element.getAsJsonObject();
+                    resultsByPath.put(result.get("path").getAsString(), result);
+                }
+            }
+        }
+
+        JsonArray resourceArray = new JsonArray();
+        for (Resource resource : indexedResources()) {
+            JsonObject result = resultsByPath.get(resource.path);
+            if (result != null) {
+                resourceArray.add(result);
+            }
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            Files.delete(outDir.resolve(shardLogName(i, shardCount)));
+        }
+        return resourceArray;
+    }
+
+    void load(String filename, InputStream stream) throws IOException {
         if (!stream.markSupported()) {
-            stream = new BufferedInputStream(stream);
+            stream = new BufferedInputStream(stream, readBuffers.maxSize());
         }
         stream.mark(1);
         int firstByte = stream.read();
@@ -232,7 +632,7 @@ public class Warc2Html {
     }
 
     private void loadWarc(String filename, InputStream stream) throws IOException {
-        WarcReader reader = new WarcReader(stream);
+        WarcReader reader = new WarcReader(Channels.newChannel(stream), readBuffers.get(-1));
         WarcRecord record = reader.next().orElse(null);
         while (record != null) {
             if (!(record instanceof WarcResponse)) {
@@ -265,29 +665,125 @@ public class Warc2Html {
 
     protected WarcReader openWarc(String filename, long offset, long length) throws IOException {
         String pathOrUrl = warcBaseLocation + filename;
-        if (pathOrUrl.startsWith("http://") || pathOrUrl.startsWith("https://")) {
+        if (isRemote(pathOrUrl)) {
             var connection = (HttpURLConnection) new URL(pathOrUrl).openConnection();
             if (length > 0) {
                 connection.addRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
             } else if (offset > 0) {
                 connection.addRequestProperty("Range", "bytes=" + offset + "-");
             }
-            return new WarcReader(connection.getInputStream());
+            return new WarcReader(Channels.newChannel(connection.getInputStream()), readBuffers.get(length));
         } else {
             FileChannel channel = FileChannel.open(Paths.get(pathOrUrl));
             channel.position(offset);
-            return new WarcReader(channel);
+            return new WarcReader(channel, readBuffers.get(length));
         }
     }
 
-    private void add(Resource resource) {
+    private Path localWarcPath(String filename) {
+        String pathOrUrl = warcBaseLocation + filename;
+        return isRemote(pathOrUrl) ? null : Paths.get(pathOrUrl);
+    }
+
+    private static boolean isRemote(String pathOrUrl) {
+        return pathOrUrl.startsWith("http://") || pathOrUrl.startsWith("https://");
+    }
+
+    /**
+     * Copies the HTTP payload of a response straight from the source WARC file into the output file. This only works
+     * when the payload is stored as a contiguous byte range: a local uncompressed WARC with identity transfer and
+     * content encoding. The kernel then moves the bytes without them passing through the JVM heap.
+     *
+     * @return false if the payload isn't a plain byte range of the source file and must be streamed instead
+     */
+    boolean transferPayload(WarcReader reader, WarcResponse response, Resource resource, FileChannel output) throws IOException {
+        Path warcPath = localWarcPath(resource.warc);
+        if (warcPath == null || reader.compression() != WarcCompression.NONE) {
+            return false;
+        }
+        MessageHeaders headers = response.http().headers();
+        if (!isIdentity(headers.first("Transfer-Encoding")) || !isIdentity(headers.first("Content-Encoding"))) {
+            return false;
+        }
+
+        // jwarc sizes the HTTP body as the remainder of the WARC block after the HTTP headers
+        long blockLength = response.body().size();
+        long payloadLength = response.http().body().size();
+        if (payloadLength < 0 || payloadLength > blockLength) {
+            return false;
+        }
+
+        try (FileChannel source = FileChannel.open(warcPath)) {
+            long blockOffset = findBlockOffset(source, resource.offset);
+            if (blockOffset < 0) {
+                return false;
+            }
+            long position = blockOffset + blockLength - payloadLength;
+            while (payloadLength > 0) {
+                long n = source.transferTo(position, payloadLength, output);
+                if (n <= 0) {
+                    throw new EOFException("WARC record truncated at " + position + " in " + warcPath);
+                }
+                position += n;
+                payloadLength -= n;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIdentity(Optional<String> encoding) {
+        return encoding.map(value -> value.isBlank() || value.strip().equalsIgnoreCase("identity")).orElse(true);
+    }
+
+    /**
+     * Finds the file offset of the block of the uncompressed WARC record at recordOffset by scanning for the blank
+     * line that ends the record header. Returns -1 if the header is unreasonably long.
+     */
+    static long findBlockOffset(FileChannel channel, long recordOffset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        int matched = 0; // length of the "\r\n\r\n" prefix seen so far
+        long position = recordOffset;
+        while (position < recordOffset + MAX_WARC_HEADER_LENGTH) {
+            buffer.clear();
+            if (channel.read(buffer, position) <= 0) {
+                return -1;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                position++;
+                if (b == (matched % 2 == 0 ? '\r' : '\n')) {
+                    matched++;
+                } else {
+                    matched = b == '\r' ? 1 : 0;
+                }
+                if (matched == 4) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void add(Resource resource) throws IOException {
         String path = PathUtils.pathFromUrl(resource.url, forcedExtensions.get(resource.type));
-        path = ensureUniquePath(resourcesByPath, path);
 
         if (resource.status >= 300) {
+            if (resource.isRedirect()) {
+                addRedirect(resource);
+            }
+            return;
+        }
+
+        // the on-disk index makes paths unique and picks between duplicate URL keys when it's built
+        if (indexMemory > 0) {
+            resource.path = path;
+            externalIndex().add(resource, makeUrlKey(resource.url));
             return;
         }
 
+        path = ensureUniquePath(resourcesByPath, path);
+
         resource.path = path;
         resourcesByPath.put(path, resource);
 
@@ -311,12 +807,99 @@ public class Warc2Html {
         }
     }
 
+    private ExternalIndex externalIndex() throws IOException {
+        if (externalIndex == null) {
+            externalIndex = new ExternalIndex(indexMemory, indexTempDir);
+        }
+        return externalIndex;
+    }
+
+    private void buildIndex() throws IOException {
+        if (externalIndex != null && !externalIndex.isBuilt()) {
+            System.out.println("Building index");
+            externalIndex.build();
+        }
+    }
+
+    private Iterable<Resource> indexedResources() {
+        return externalIndex != null ? externalIndex.resources() : resourcesByPath.values();
+    }
+
+    private String pathForUrlKey(String urlKey) {
+        if (externalIndex == null) {
+            Resource resource = resourcesByUrlKey.get(urlKey);
+            return resource == null ? null : resource.path;
+        }
+        try {
+            return externalIndex.pathForUrlKey(urlKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean containsPath(String path) {
+        if (externalIndex == null) {
+            return resourcesByPath.containsKey(path);
+        }
+        try {
+            return externalIndex.containsPath(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Resource redirectForUrlKey(String urlKey) {
+        if (externalIndex == null) {
+            return redirectsByUrlKey.get(urlKey);
+        }
+        try {
+            return externalIndex.redirect(urlKey);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns every redirect by its URL key.
+     */
+    private Iterable<Map.Entry<String, Resource>> redirects() {
+        return externalIndex != null ? externalIndex.redirects() : redirectsByUrlKey.entrySet();
+    }
+
+    /**
+     * Returns every URL key, including resolved redirects, with the path of the resource it maps to.
+     */
+    private Iterable<Map.Entry<String, String>> urlKeyPaths() {
+        if (externalIndex == null) {
+            return () -> resourcesByUrlKey.entrySet().stream()
+                    .map(entry -> Map.entry(entry.getKey(), entry.getValue().path))
+                    .iterator();
+        }
+        return externalIndex.urlKeys();
+    }
+
+    private void addRedirect(Resource resource) throws IOException {
+        resource.path = PathUtils.pathFromUrl(resource.url, forcedExtensions.get(resource.type));
+        String urlKey = makeUrlKey(resource.url);
+        if (indexMemory > 0) {
+            externalIndex().addRedirect(resource, urlKey);
+            return;
+        }
+        Resource existing = redirectsByUrlKey.get(urlKey);
+        if (existing == null || !resource.instant.isBefore(existing.instant)) {
+            redirectsByUrlKey.put(urlKey, resource);
+        }
+    }
+
     public String getRandomAlphaString(int n) {
+        return getRandomAlphaString(n, ThreadLocalRandom.current());
+    }
+
+    public String getRandomAlphaString(int n, Random random) {
         String AlphaNumericString = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvxyz";
         StringBuilder sb = new StringBuilder(n);
         for (int i = 0; i < n; i++) {
-            int index = (int) (AlphaNumericString.length() * Math.random());
-            sb.append(AlphaNumericString.charAt(index));
+            sb.append(AlphaNumericString.charAt(random.nextInt(AlphaNumericString.length())));
         }
         return sb.toString();
     }
@@ -331,124 +914,283 @@ public class Warc2Html {
     }
 
     public JsonArray writeTo(Path outDir) throws IOException {
+        JsonArray resourceArray = new JsonArray();
+        writeTo(outDir, resourceArray::add);
+        return resourceArray;
+    }
+
+    /**
+     * Exports every resource into outDir, passing the log entry of each resource written to resourceLog in path order
+     * as the export goes rather than collecting them all in memory.
+     */
+    public void writeTo(Path outDir, Consumer<JsonObject> resourceLog) throws IOException {
 
         // Load Rejected Paths JSON
         JsonObject rejectedPaths = loadRejectedPathsFromFile(rejectedPathsFilePath);
         System.out.println(rejectedPaths);
 
-        // Create an array of JsonObjects
-        JsonArray resourceArray = new JsonArray();
-
         // Create outDir directory
         Files.createDirectories(outDir);
 
+        buildIndex();
+
+        // Write the server rewrite map for redirects (only once in a sharded export)
+        if (!redirectMapFilePath.isEmpty() && shardIndex == 0) {
+            writeRedirectMap(Paths.get(redirectMapFilePath));
+        }
+
+        // Build the filter that lets rewriteLink skip canonicalising links to hosts outside the collection
+        buildLinkFilter();
+
+        // Only resources in this worker's shard that aren't rejected are exported
+        Iterable<Resource> exported = () -> StreamSupport.stream(indexedResources().spliterator(), false)
+                .filter(resource -> inShard(resource) && !isRejectedPath(resource.url, rejectedPaths))
+                .iterator();
+
         // Set counters
-        int idx = 0;
-        int resourcesSize = resourcesByPath.values().size() - 1;
+        long total = 0;
+        for (Resource ignored : exported) {
+            total++;
+        }
+        ExportLog log = new ExportLog(total - 1, resourceLog);
 
-        // Iterate over every resource
-        for (Resource resource : resourcesByPath.values()) {
+        // Warm the page cache for upcoming records on a background thread
+        ReadAhead readAhead = readAheadRecords > 0 ? new ReadAhead(exported.iterator(), readAheadRecords, readBuffers, this::localWarcPath) : null;
 
-            // Check if resource is to be rejected -> continue
-            if (isRejectedPath(resource.url, rejectedPaths)) {
-                continue;
+        // Records are read and inflated on the fetch stage, links rewritten on the CPU-bound rewrite stage and the
+        // results written out on the write stage, each handing over through a bounded queue
+        PipelineStage fetchStage = PipelineStage.fixed("warc2html-fetch", fetchThreads, fetchThreads + queueSize);
+        PipelineStage rewriteStage = PipelineStage.fixed("warc2html-rewrite", rewriteThreads, rewriteThreads + queueSize);
+        PipelineStage writeStage = PipelineStage.io("warc2html-write", queueSize);
+        try {
+            // Iterate over every exported resource
+            for (Resource resource : exported) {
+                // stop feeding the pipeline once a task has hit an Error
+                if (log.error() != null) {
+                    break;
+                }
+                long seq = log.submitted();
+                if (readAhead != null) {
+                    readAhead.advance(seq);
+                }
+                fetchStage.submit(() -> fetch(resource, outDir, rewriteStage, writeStage, log, seq));
             }
 
-            try (WarcReader reader = openWarc(resource.warc, resource.offset, resource.length)) {
+            fetchStage.awaitCompletion();
+            rewriteStage.awaitCompletion();
+            writeStage.awaitCompletion();
+            if (log.error() != null) {
+                throw log.error();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("export interrupted");
+        } finally {
+            fetchStage.shutdownNow();
+            rewriteStage.shutdownNow();
+            writeStage.shutdownNow();
+            if (readAhead != null) {
+                readAhead.close();
+            }
+        }
 
-                String progressPercentage = Float.toString((idx * 100.0f) / resourcesSize);
-                System.out.println("---------------");
-                System.out.println("Progress: " + progressPercentage + "%");
+        if (linkFilter != null) {
+            System.out.println("Link filter: " + linkFilterEntries + " hosts, " + linkFilter.sizeInBytes() + " bytes, "
+                    + linkFilter.numHashes() + " hashes, expected false-positive rate "
+                    + linkFilter.expectedFalsePositiveRate(linkFilterEntries) + ", " + linkFilterSkips.sum() + " of "
+                    + linkFilterChecks.sum() + " links skipped");
+        }
+    }
 
-                WarcRecord record = reader.next().orElseThrow();
-                if (!(record instanceof WarcResponse)) {
-                    throw new IllegalStateException();
-                }
-                WarcResponse response = (WarcResponse) record;
+    /**
+     * Reads a resource's record. Binary payloads are copied straight to disk while anything that needs links
+     * rewritten is buffered and handed to the rewrite stage.
+     */
+    private void fetch(Resource resource, Path outDir, PipelineStage rewriteStage, PipelineStage writeStage, ExportLog log, long seq) {
+        try (WarcReader reader = openWarc(resource.warc, resource.offset, resource.length)) {
+            WarcRecord record = reader.next().orElseThrow();
+            if (!(record instanceof WarcResponse)) {
+                throw new IllegalStateException();
+            }
+            WarcResponse response = (WarcResponse) record;
 
-                Path path = outDir.resolve(URLDecoder.decode(resource.path, UTF_8));
-                Files.createDirectories(path.getParent());
+            Path path = outDir.resolve(URLDecoder.decode(resource.path, UTF_8));
+            Files.createDirectories(path.getParent());
 
-                try (OutputStream output = Files.newOutputStream(path)) {
-                    InputStream input = response.http().body().stream();
-                    if (resource.isRedirect()) {
-                        String destination = rewriteLink(resource.locationHeader, URI.create(resource.url), resource.path);
+            if (resource.isRedirect() || resource.type.equals("text/html") || resource.type.equals("text/css")
+                    || resource.type.contains("javascript")) {
+                byte[] body = response.http().body().stream().readAllBytes();
+                rewriteStage.submit(() -> rewrite(resource, body, path, writeStage, log, seq));
+                return;
+            }
 
-                        if (destination == null) {
-                            destination = resource.locationHeader;
-                        }
+            try (FileChannel channel = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                if (!transferPayload(reader, response, resource, channel)) {
+                    response.http().body().stream().transferTo(Channels.newOutputStream(channel));
+                }
+            }
+            log.completed(seq, resource);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.failed(seq, ex);
+        } catch (Throwable ex) {
+            log.failed(seq, ex);
+        }
+    }
 
-                        output.write(("<!-- Redirected From : " + resource.url + " -->\n").getBytes(UTF_8));
-                        if (!destination.isBlank() && !destination.isEmpty()) {
-                            output.write(("<meta http-equiv=\"refresh\" content=\"0; url=" + destination + "\">\n").getBytes(UTF_8));
-                        } else {
-                            output.write(("<!-- Change to HTTPS -->\n").getBytes(UTF_8));
-                            String tempUrl = resource.url.replace("http://", "https://");
-                            String tempPath = removeTilda(resource.path);
-                            destination = rewriteLink(resource.locationHeader, URI.create(tempUrl), tempPath);
-                            destination = removeTilda(destination);
-                            output.write(("<meta http-equiv=\"refresh\" content=\"0; url=" + destination + "\">\n").getBytes(UTF_8));
-                        }
-                    } else if (resource.type.equals("text/html")) {
-                        URI baseUri = URI.create(resource.url);
-                        LinkRewriter.rewriteHTML(input, output, url -> rewriteLink(url, baseUri, resource.path));
-                    } else {
-                        input.transferTo(output);
-                    }
+    private void rewrite(Resource resource, byte[] body, Path path, PipelineStage writeStage, ExportLog log, long seq) {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            if (resource.isRedirect()) {
+                String destination = rewriteLink(resource.locationHeader, URI.create(resource.url), resource.path);
 
-                    if (resource.type.equals("text/css")) {
-                        String css = Files.readString(path);
-                        URI baseUri = URI.create(resource.url);
-                        String rewritten = rewriteCSS(css, url -> rewriteLink(url, baseUri, resource.path));
-                        try (FileWriter modFile = new FileWriter(path.toFile())) {
-                            modFile.write(rewritten);
-                        }
-                    }
+                if (destination == null) {
+                    destination = resource.locationHeader;
+                }
 
-                    if (resource.type.contains("javascript")) {
-                        String js = Files.readString(path);
-                        String rndStr = getRandomAlphaString(16);
-                        String rewritten = rewriteJS(js, url -> url, rndStr);
-                        rewritten = "// -------------------------------------------------------- " + "\n"
-                                + "// " + rndStr + "\n"
-                                + "var " + rndStr + "_pathname = window.location.pathname;" + "\n"
-                                + "var " + rndStr + "_basePath = \"" + resource.path.split("/")[0] + "\";" + "\n"
-                                + "var " + rndStr + "_pathname_split = " + rndStr + "_pathname;" + "\n"
-                                + "if(" + rndStr + "_pathname.includes(" + rndStr + "_basePath)) {" + rndStr + "_pathname_split = " + rndStr + "_pathname.split(" + rndStr + "_basePath)[1];}" + "\n"
-                                + rndStr + "_pathname_split = " + rndStr + "_pathname_split.replace(\"//\", \"/\")" + "\n"
-                                + "var " + rndStr + "_foldersNumb = " + rndStr + "_pathname_split.split(\"/\").filter(function(item){if (item !== \"\" && !item.endsWith(\".page\")) {return item;}});" + "\n"
-                                + "var " + rndStr + "_relativePath = '';" + "\n"
-                                + rndStr + "_foldersNumb.forEach(item => " + rndStr + "_relativePath += '../');" + "\n"
-                                + "// -------------------------------------------------------- " + "\n\n"
-                                + rewritten;
-                        try (FileWriter modFile = new FileWriter(path.toFile())) {
-                            modFile.write(rewritten);
-                        }
-                    }
+                output.write(("<!-- Redirected From : " + resource.url + " -->\n").getBytes(UTF_8));
+                if (!destination.isBlank() && !destination.isEmpty()) {
+                    output.write(("<meta http-equiv=\"refresh\" content=\"0; url=" + destination + "\">\n").getBytes(UTF_8));
+                } else {
+                    output.write(("<!-- Change to HTTPS -->\n").getBytes(UTF_8));
+                    String tempUrl = resource.url.replace("http://", "https://");
+                    String tempPath = removeTilda(resource.path);
+                    destination = rewriteLink(resource.locationHeader, URI.create(tempUrl), tempPath);
+                    destination = removeTilda(destination);
+                    output.write(("<meta http-equiv=\"refresh\" content=\"0; url=" + destination + "\">\n").getBytes(UTF_8));
                 }
+            } else if (resource.type.equals("text/html")) {
+                URI baseUri = URI.create(resource.url);
+                LinkRewriter.rewriteHTML(new ByteArrayInputStream(body), output, url -> rewriteLink(url, baseUri, resource.path));
+            } else if (resource.type.equals("text/css")) {
+                Charset charset = textCharset(body);
+                URI baseUri = URI.create(resource.url);
+                output.write(rewriteCSS(new String(body, charset), url -> rewriteLink(url, baseUri, resource.path)).getBytes(charset));
+            } else {
+                Charset charset = textCharset(body);
+                output.write(rewriteJavaScript(new String(body, charset), resource).getBytes(charset));
+            }
+            writeStage.submit(() -> write(resource, path, output.toByteArray(), log, seq));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.failed(seq, ex);
+        } catch (Throwable ex) {
+            log.failed(seq, ex);
+        }
+    }
+
+    /**
+     * Returns UTF-8 if the body is valid UTF-8 and ISO-8859-1 otherwise. Decoding anything else (commonly Latin-1 or
+     * Windows-1252 stylesheets) as ISO-8859-1 maps every byte to a char and back unchanged, so links can still be
+     * rewritten without mangling the rest of the file.
+     */
+    private static Charset textCharset(byte[] body) {
+        try {
+            UTF_8.newDecoder().decode(ByteBuffer.wrap(body));
+            return UTF_8;
+        } catch (CharacterCodingException e) {
+            return ISO_8859_1;
+        }
+    }
+
+    private static void write(Resource resource, Path path, byte[] data, ExportLog log, long seq) {
+        try {
+            Files.write(path, data);
+            log.completed(seq, resource);
+        } catch (Throwable ex) {
+            log.failed(seq, ex);
+        }
+    }
+
+    private String rewriteJavaScript(String js, Resource resource) {
+        // seeded by path so that every export, sharded or not, produces the same output
+        String rndStr = getRandomAlphaString(16, new Random(resource.path.hashCode()));
+        String rewritten = rewriteJS(js, url -> url, rndStr);
+        return "// -------------------------------------------------------- " + "\n"
+                + "// " + rndStr + "\n"
+                + "var " + rndStr + "_pathname = window.location.pathname;" + "\n"
+                + "var " + rndStr + "_basePath = \"" + resource.path.split("/")[0] + "\";" + "\n"
+                + "var " + rndStr + "_pathname_split = " + rndStr + "_pathname;" + "\n"
+                + "if(" + rndStr + "_pathname.includes(" + rndStr + "_basePath)) {" + rndStr + "_pathname_split = " + rndStr + "_pathname.split(" + rndStr + "_basePath)[1];}" + "\n"
+                + rndStr + "_pathname_split = " + rndStr + "_pathname_split.replace(\"//\", \"/\")" + "\n"
+                + "var " + rndStr + "_foldersNumb = " + rndStr + "_pathname_split.split(\"/\").filter(function(item){if (item !== \"\" && !item.endsWith(\".page\")) {return item;}});" + "\n"
+                + "var " + rndStr + "_relativePath = '';" + "\n"
+                + rndStr + "_foldersNumb.forEach(item => " + rndStr + "_relativePath += '../');" + "\n"
+                + "// -------------------------------------------------------- " + "\n\n"
+                + rewritten;
+    }
+
+    /**
+     * Reports progress and passes log entries on in the order resources were submitted, however the pipeline happens
+     * to complete them. Only the entries of resources still in flight are held in memory. Every submitted resource must
+     * end in exactly one call to completed or failed, otherwise nothing after it is logged. The first Error a task
+     * fails with is kept so the export can be aborted with it, as it would have been before the pipeline.
+     */
+    private static class ExportLog {
+        private final long total;
+        private final Consumer<JsonObject> resourceLog;
+        private final Map<Long, JsonObject> pending = new HashMap<>();
+        private long submitted;
+        private long nextToLog;
+        private long completed;
+        private Error error;
+
+        ExportLog(long total, Consumer<JsonObject> resourceLog) {
+            this.total = total;
+            this.resourceLog = resourceLog;
+        }
+
+        synchronized long submitted() {
+            return submitted++;
+        }
+
+        synchronized void completed(long seq, Resource resource) {
+            String progressPercentage = Float.toString((completed * 100.0f) / total);
+            System.out.println("---------------");
+            System.out.println("Progress: " + progressPercentage + "%");
+
+            // Create a JsonObject
+            JsonObject resourceJSON = new JsonObject();
+            resourceJSON.addProperty("path", resource.path);
+            resourceJSON.addProperty("url", resource.url);
+            resourceJSON.addProperty("type", resource.type);
+            resourceJSON.addProperty("status", resource.status);
 
-                // Create a JsonObject
-                JsonObject resourceJSON = new JsonObject();
-                resourceJSON.addProperty("path", resource.path);
-                resourceJSON.addProperty("url", resource.url);
-                resourceJSON.addProperty("type", resource.type);
-                resourceJSON.addProperty("status", resource.status);
-                resourceArray.add(resourceJSON);
+            // Show console log
+            System.out.println(resourceJSON);
 
-                // Show console log
-                System.out.println(resourceJSON);
+            completed += 1;
+            finish(seq, resourceJSON);
+        }
 
-                idx += 1;
-            } catch (Exception ex) {
-                System.out.println("Exception");
-                ex.printStackTrace();
+        synchronized void failed(long seq, Throwable ex) {
+            System.out.println("Exception");
+            ex.printStackTrace();
+            if (ex instanceof Error && error == null) {
+                error = (Error) ex;
             }
+            finish(seq, null);
         }
 
-        return resourceArray;
+        synchronized Error error() {
+            return error;
+        }
+
+        private void finish(long seq, JsonObject resourceJSON) {
+            if (seq < nextToLog || pending.containsKey(seq)) {
+                return; // already finished, e.g. completed then failed while logging
+            }
+            pending.put(seq, resourceJSON);
+            while (pending.containsKey(nextToLog)) {
+                JsonObject next = pending.remove(nextToLog++);
+                if (next != null) {
+                    resourceLog.accept(next);
+                }
+            }
+        }
     }
 
-    private String rewriteLink(String url, URI baseUri, String basePath) {
+    String rewriteLink(String url, URI baseUri, String basePath) {
 
         URI uri;
         try {
@@ -456,20 +1198,174 @@ public class Warc2Html {
         } catch (IllegalArgumentException e) {
             return null;
         }
-        Resource resource = resourcesByUrlKey.get(makeUrlKey(uri.toString()));
-        if (resource == null) {
+        if (linkFilter != null) {
+            String host = canonicalHost(uri);
+            if (host != null) {
+                linkFilterChecks.increment();
+                if (!linkFilter.mightContain(host)) {
+                    linkFilterSkips.increment();
+                    return null;
+                }
+            }
+        }
+        String path = pathForUrlKey(makeUrlKey(uri.toString()));
+        if (path == null) {
             return null;
         }
-        return PathUtils.relativize(resource.path, basePath);
+        return PathUtils.relativize(path, basePath);
     }
 
-    public void resolveRedirects() {
-        this.resourcesByUrlKey.replaceAll((key, resource) -> {
-            if (resource.isRedirect()) {
-                return resourcesByUrlKey.getOrDefault(makeUrlKey(resource.locationHeader), resource);
-            } else {
-                return resource;
+    /**
+     * Builds a Bloom filter over the canonical host of every URL key so that rewriteLink can reject links to hosts
+     * that were never captured without fully canonicalising them.
+     */
+    void buildLinkFilter() {
+        if (linkFilterFalsePositiveRate == 0) {
+            linkFilter = null;
+            return;
+        }
+        Set<String> hosts = new HashSet<>();
+        for (Map.Entry<String, String> entry : urlKeyPaths()) {
+            hosts.add(ParsedUrl.parseUrl(entry.getKey()).getHost());
+        }
+        linkFilter = BloomFilter.create(hosts.size(), linkFilterFalsePositiveRate, linkFilterMaxBytes);
+        hosts.forEach(linkFilter::add);
+        linkFilterEntries = hosts.size();
+    }
+
+    /**
+     * Returns the host of an http or https URI in the form makeUrlKey would give it. Only plain DNS names are handled;
+     * for anything that needs IDN, IP address or percent-encoding normalisation this returns null.
+     */
+    static String canonicalHost(URI uri) {
+        String scheme = uri.getScheme();
+        String host = uri.getHost();
+        if (host == null || !("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme))) {
+            return null;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        if (!SIMPLE_HOST.matcher(host).matches() || NUMERIC_LAST_LABEL.matcher(host).find()) {
+            return null;
+        }
+        return WWW_PREFIX.matcher(host).replaceFirst("");
+    }
+
+    /**
+     * Collapses redirect chains so that each redirecting URL key maps directly to the final captured resource. Chains
+     * that loop back on themselves or end at a URL that was never captured are left unresolved.
+     */
+    public void resolveRedirects() throws IOException {
+        buildIndex();
+        if (externalIndex != null) {
+            // resolved lazily in URL key order as they're merged into the on-disk URL-key table
+            externalIndex.addAliases(StreamSupport.stream(externalIndex.redirects().spliterator(), false)
+                    .map(entry -> resolveRedirect(entry.getKey()))
+                    .filter(Objects::nonNull)
+                    .iterator());
+            return;
+        }
+        for (Map.Entry<String, Resource> entry : redirectsByUrlKey.entrySet()) {
+            Map.Entry<String, String> alias = resolveRedirect(entry.getKey());
+            if (alias != null) {
+                resourcesByUrlKey.put(alias.getKey(), resourcesByPath.get(alias.getValue()));
             }
-        });
+        }
+    }
+
+    /**
+     * Returns the redirect's URL key mapped to the path its chain ends at, or null if it doesn't need resolving or
+     * can't be resolved.
+     */
+    private Map.Entry<String, String> resolveRedirect(String urlKey) {
+        // a real capture always takes precedence over a redirect
+        if (pathForUrlKey(urlKey) != null) {
+            return null;
+        }
+        String destination = followRedirects(urlKey);
+        return destination == null ? null : Map.entry(urlKey, destination);
+    }
+
+    /**
+     * Returns the path of the resource a chain of redirects ends at.
+     */
+    private String followRedirects(String urlKey) {
+        Set<String> visited = new HashSet<>();
+        while (visited.add(urlKey)) {
+            Resource redirect = redirectForUrlKey(urlKey);
+            if (redirect == null) {
+                return null; // chain leaves the collection
+            }
+            urlKey = redirectTargetKey(redirect);
+            if (urlKey == null) {
+                return null;
+            }
+            String destination = pathForUrlKey(urlKey);
+            if (destination != null) {
+                return destination;
+            }
+        }
+        return null; // cycle
+    }
+
+    private static String redirectTargetKey(Resource redirect) {
+        try {
+            return makeUrlKey(URI.create(redirect.url).resolve(redirect.locationHeader.strip()).toString());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the output path of each resolved redirect mapped to the output path of its final destination.
+     */
+    Map<String, String> redirectMap() throws IOException {
+        buildIndex();
+        Map<String, String> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, String> entry : resolvedRedirects()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        return map;
+    }
+
+    /**
+     * Streams the output path of each resolved redirect with the output path of its final destination, in URL key
+     * order.
+     */
+    private Iterable<Map.Entry<String, String>> resolvedRedirects() {
+        return () -> StreamSupport.stream(redirects().spliterator(), false)
+                .map(entry -> {
+                    String destination = pathForUrlKey(entry.getKey());
+                    if (destination == null || containsPath(entry.getValue().path)) {
+                        return null;
+                    }
+                    return Map.entry(entry.getValue().path, destination);
+                })
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    /**
+     * Writes the resolved redirects as a plain text rewrite map (one "source target" pair per line) suitable for
+     * Apache's RewriteMap or nginx's map directive, instead of generating a meta-refresh page per redirect.
+     */
+    public void writeRedirectMap(Path file) throws IOException {
+        buildIndex();
+        // the in-memory index writes the map sorted by path, the on-disk index streams it in URL key order
+        Iterable<Map.Entry<String, String>> redirects = externalIndex != null ? resolvedRedirects() : redirectMap().entrySet();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, UTF_8)) {
+            for (Map.Entry<String, String> entry : redirects) {
+                writer.write("/" + entry.getKey() + " /" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    /**
+     * Removes the on-disk index, if one was built. Nothing can be exported afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (externalIndex != null) {
+            externalIndex.close();
+        }
     }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.netpreserve.warc2html;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+    @Test
+    public void noFalseNegatives() {
+        BloomFilter filter = BloomFilter.create(10000, 0.01, Long.MAX_VALUE);
+        for (int i = 0; i < 10000; i++) {
+            filter.add("host" + i + ".example.org");
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain("host" + i + ".example.org"));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain("other" + i + ".example.org")) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void maxBytes() {
+        BloomFilter filter = BloomFilter.create(1000000, 0.001, 1024);
+        assertTrue(filter.sizeInBytes() <= 1024);
+        assertTrue(filter.expectedFalsePositiveRate(1000000) > 0.001);
+        assertEquals(8, BloomFilter.create(1000000, 0.01, 12).sizeInBytes());
+        assertEquals(16, BloomFilter.create(1000000, 0.01, 16).sizeInBytes());
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.netpreserve.warc2html;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalSorterTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static final ExternalSorter.Codec<int[]> CODEC = new ExternalSorter.Codec<>() {
+        @Override
+        public void write(DataOutput out, int[] value) throws IOException {
+            out.writeInt(value[0]);
+            out.writeInt(value[1]);
+        }
+
+        @Override
+        public int[] read(DataInput in) throws IOException {
+            return new int[]{in.readInt(), in.readInt()};
+        }
+    };
+
+    @Test
+    public void mergesMoreRunsThanFanIn() throws IOException {
+        long[] budgets = {ExternalSorter.MIN_MEMORY_BUDGET, 2L * (ExternalSorter.MAX_FAN_IN + 1) * ExternalSorter.MIN_STREAM_BUFFER_SIZE};
+        for (long budget : budgets) {
+            Path dir = temp.newFolder().toPath();
+            int count = 1000;
+            List<int[]> sorted = new ArrayList<>();
+            // every value is estimated at the whole budget so each one is spilled as its own run
+            try (ExternalSorter<int[]> sorter = new ExternalSorter<>(Comparator.comparingInt(value -> value[0]), CODEC,
+                    budget, value -> budget, dir)) {
+                for (int i = 0; i < count; i++) {
+                    sorter.add(new int[]{(i * 7919) % 10, i});
+                }
+                assertTrue(sorter.runCount() > sorter.fanIn());
+
+                try (ExternalSorter<int[]>.MergeIterator it = sorter.sorted()) {
+                    it.forEachRemaining(sorted::add);
+                }
+                assertTrue(sorter.runCount() <= sorter.fanIn());
+            }
+
+            assertEquals(count, sorted.size());
+            for (int i = 1; i < count; i++) {
+                int[] previous = sorted.get(i - 1);
+                int[] value = sorted.get(i);
+                assertTrue(previous[0] < value[0] || (previous[0] == value[0] && previous[1] < value[1]));
+            }
+            try (Stream<Path> files = Files.list(dir)) {
+                assertEquals(0, files.count());
+            }
+        }
+    }
+}
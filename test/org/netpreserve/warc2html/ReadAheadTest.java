@@ -0,0 +1,36 @@
+/*
+ * Copyright 2021 National Library of Australia
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.netpreserve.warc2html;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadAheadTest {
+    @Test
+    public void coalesceMergesNearbyRangesPerFile() {
+        Path a = Path.of("a.warc");
+        Path b = Path.of("b.warc");
+        List<ReadAhead.Range> ranges = List.of(
+                new ReadAhead.Range(0, b, 5000, 6000),
+                new ReadAhead.Range(1, a, 2000, 3000),
+                new ReadAhead.Range(2, a, 0, 1000),
+                new ReadAhead.Range(3, b, 0, 1000),
+                new ReadAhead.Range(4, a, 3001 + ReadAhead.MAX_GAP, 4001 + ReadAhead.MAX_GAP),
+                new ReadAhead.Range(5, a, 2500, 2600));
+
+        List<String> merged = ReadAhead.coalesce(ranges).stream()
+                .map(range -> range.path + ":" + range.start + "-" + range.end)
+                .collect(Collectors.toList());
+        assertEquals(List.of("a.warc:0-3000",
+                "a.warc:" + (3001 + ReadAhead.MAX_GAP) + "-" + (4001 + ReadAhead.MAX_GAP),
+                "b.warc:0-6000"), merged);
+    }
+}
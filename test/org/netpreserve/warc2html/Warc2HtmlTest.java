@@ -5,11 +5,48 @@
 
 package org.netpreserve.warc2html;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.netpreserve.jwarc.MediaType;
+import org.netpreserve.jwarc.WarcCompression;
+import org.netpreserve.jwarc.WarcReader;
+import org.netpreserve.jwarc.WarcResponse;
+import org.netpreserve.jwarc.WarcWriter;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 
 public class Warc2HtmlTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
     @Test
     public void sanitizeFilename() {
         assertEquals("hello.html_foo=1&bar=__baz", PathUtils.replaceBadFilenameChars("hello.html?foo=1&bar=<>baz"));
@@ -33,4 +70,334 @@ public class Warc2HtmlTest {
         assertEquals("../e.html", PathUtils.relativize("a/b/e.html", "a/b/c/d.html"));
         assertEquals("../../z/e.html", PathUtils.relativize("a/b/z/e.html", "a/b/c/d/e.html"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void resolveRedirectChains() throws IOException {
+        Warc2Html warc2Html = new Warc2Html();
+        warc2Html.loadCdx(new BufferedReader(new StringReader(
+                cdx("http://example.org/a", 301, "/b") +
+                cdx("http://example.org/b", 302, "http://example.org/c.html") +
+                cdx("http://example.org/c.html", 200, "-") +
+                cdx("http://example.org/x", 301, "/y") +
+                cdx("http://example.org/y", 301, "/x") +
+                cdx("http://example.org/gone", 301, "/missing"))));
+        warc2Html.resolveRedirects();
+
+        URI base = URI.create("http://example.org/index.html");
+        assertEquals("c.page", warc2Html.rewriteLink("/a", base, "example.org/index.html"));
+        assertEquals("c.page", warc2Html.rewriteLink("/b", base, "example.org/index.html"));
+        assertNull(warc2Html.rewriteLink("/x", base, "example.org/index.html"));
+        assertNull(warc2Html.rewriteLink("/gone", base, "example.org/index.html"));
+        assertEquals(Map.of("example.org/a.page", "example.org/c.page",
+                "example.org/b.page", "example.org/c.page"), warc2Html.redirectMap());
+    }
+
+    @Test
+    public void linkFilterSkipsOtherHosts() throws IOException {
+        Warc2Html warc2Html = new Warc2Html();
+        warc2Html.loadCdx(new BufferedReader(new StringReader(
+                cdx("http://www.example.org/a.html", 200, "-") +
+                cdx("http://127.0.0.1/b.html", 200, "-"))));
+        warc2Html.buildLinkFilter();
+
+        URI base = URI.create("http://example.org/index.html");
+        assertEquals("../www.example.org/a.page", warc2Html.rewriteLink("HTTPS://WWW2.Example.ORG/A.html", base, "example.org/index.html"));
+        assertEquals("../127.0.0.1/b.page", warc2Html.rewriteLink("http://0x7f.1/b.html", base, "example.org/index.html"));
+        assertNull(warc2Html.rewriteLink("http://other.example.com/a.html", base, "example.org/index.html"));
+
+        assertEquals("example.org", Warc2Html.canonicalHost(URI.create("https://www.Example.org/")));
+        assertNull(Warc2Html.canonicalHost(URI.create("http://10.0.0.1/")));
+        assertNull(Warc2Html.canonicalHost(URI.create("mailto:someone@example.org")));
+    }
+
+    private static String cdx(String url, int status, String location) {
+        return "- 20210101000000 " + url + " text/html " + status + " - " + location + " - 100 0 - test.warc\n";
+    }
+
+    @Test
+    public void exportBinaryPayloads() throws IOException {
+        for (WarcCompression compression : WarcCompression.values()) {
+            Path warc = temp.newFile("test-" + compression + ".warc").toPath();
+            try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), compression)) {
+                writer.write(response("http://example.org/a.png", "image/png", "first image"));
+                writer.write(response("http://example.org/b.png", "image/png", "second\r\n\r\nimage"));
+            }
+
+            Warc2Html warc2Html = new Warc2Html();
+            warc2Html.setReadBufferSize(8192);
+            warc2Html.setReadAheadRecords(1);
+            try (InputStream stream = Files.newInputStream(warc)) {
+                warc2Html.load(warc.toString(), stream);
+            }
+            Path outDir = temp.newFolder("out-" + compression).toPath();
+            warc2Html.writeTo(outDir);
+
+            assertEquals("first image", Files.readString(outDir.resolve("example.org/a.png")));
+            assertEquals("second\r\n\r\nimage", Files.readString(outDir.resolve("example.org/b.png")));
+        }
+    }
+
+    @Test
+    public void transferPayloadCopiesByteRange() throws IOException {
+        String payload = "binary\r\n\r\ndata";
+        for (WarcCompression compression : WarcCompression.values()) {
+            Path warc = temp.newFile("transfer-" + compression + ".warc").toPath();
+            try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), compression)) {
+                writer.write(response("http://example.org/a.png", "image/png", "first"));
+                writer.write(response("http://example.org/b.png", "image/png", payload));
+            }
+
+            long offset;
+            long length;
+            try (WarcReader reader = new WarcReader(FileChannel.open(warc))) {
+                reader.next();
+                reader.next();
+                offset = reader.position();
+                reader.next();
+                length = reader.position() - offset;
+            }
+
+            Warc2Html warc2Html = new Warc2Html();
+            Resource resource = new Resource("http://example.org/b.png", Instant.now(), 200, "image/png",
+                    warc.toString(), offset, length, null);
+            Path output = temp.newFile("transfer-" + compression + ".png").toPath();
+            try (WarcReader reader = warc2Html.openWarc(resource.warc, resource.offset, resource.length);
+                 FileChannel channel = FileChannel.open(output, WRITE)) {
+                WarcResponse response = (WarcResponse) reader.next().orElseThrow();
+                boolean transferred = warc2Html.transferPayload(reader, response, resource, channel);
+                assertEquals(compression.toString(), compression == WarcCompression.NONE, transferred);
+            }
+            if (compression == WarcCompression.NONE) {
+                assertEquals(payload, Files.readString(output));
+                try (FileChannel channel = FileChannel.open(warc)) {
+                    long blockOffset = Warc2Html.findBlockOffset(channel, offset);
+                    byte[] header = new byte[(int) (blockOffset - offset)];
+                    channel.read(ByteBuffer.wrap(header), offset);
+                    assertTrue(new String(header, UTF_8).startsWith("WARC/"));
+                    assertTrue(new String(header, UTF_8).endsWith("\r\n\r\n"));
+                    assertEquals(1, new String(header, UTF_8).split("\r\n\r\n", -1).length - 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exportRewritesLinks() throws IOException {
+        Path warc = temp.newFile("links.warc.gz").toPath();
+        try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), WarcCompression.GZIP)) {
+            for (int i = 0; i < 20; i++) {
+                writer.write(response("http://example.org/" + i + "/index.html", "text/html",
+                        "<a href=/style.css>css</a><img src=/cat.png>"));
+            }
+            writer.write(response("http://example.org/style.css", "text/css", "body { background: url(/cat.png) }"));
+            writer.write(response("http://example.org/cat.png", "image/png", "meow"));
+        }
+
+        Warc2Html warc2Html = new Warc2Html();
+        warc2Html.setFetchThreads(2);
+        warc2Html.setRewriteThreads(2);
+        warc2Html.setQueueSize(1);
+        try (InputStream stream = Files.newInputStream(warc)) {
+            warc2Html.load(warc.toString(), stream);
+        }
+        Path outDir = temp.newFolder("links").toPath();
+        assertEquals(22, warc2Html.writeTo(outDir).size());
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals("<a href=\"../style.css\">css</a><img src=\"../cat.png\">",
+                    Files.readString(outDir.resolve("example.org/" + i + "/index.page")));
+        }
+        assertEquals("body { background: url(cat.png) }", Files.readString(outDir.resolve("example.org/style.css")));
+        assertEquals("meow", Files.readString(outDir.resolve("example.org/cat.png")));
+    }
+
+    @Test
+    public void exportAbortsOnError() throws IOException {
+        Path warc = temp.newFile("error.warc.gz").toPath();
+        try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), WarcCompression.GZIP)) {
+            for (int i = 0; i < 10; i++) {
+                writer.write(response("http://example.org/" + i + ".png", "image/png", "image " + i));
+            }
+        }
+
+        AtomicInteger opened = new AtomicInteger();
+        Warc2Html warc2Html = new Warc2Html() {
+            @Override
+            protected WarcReader openWarc(String filename, long offset, long length) throws IOException {
+                if (opened.incrementAndGet() == 3) {
+                    throw new StackOverflowError();
+                }
+                return super.openWarc(filename, offset, length);
+            }
+        };
+        warc2Html.setFetchThreads(2);
+        try (InputStream stream = Files.newInputStream(warc)) {
+            warc2Html.load(warc.toString(), stream);
+        }
+        assertThrows(StackOverflowError.class, () -> warc2Html.writeTo(temp.newFolder("error").toPath()));
+    }
+
+    @Test
+    public void exportRewritesLatin1Stylesheets() throws IOException {
+        Path warc = temp.newFile("latin1.warc.gz").toPath();
+        byte[] css = "/* caf\u00e9 */ body { background: url(/cat.png) }".getBytes(ISO_8859_1);
+        try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), WarcCompression.GZIP)) {
+            ByteArrayOutputStream http = new ByteArrayOutputStream();
+            http.write("HTTP/1.1 200 OK\r\nContent-Type: text/css\r\n\r\n".getBytes(UTF_8));
+            http.write(css);
+            writer.write(new WarcResponse.Builder(URI.create("http://example.org/style.css"))
+                    .date(Instant.parse("2021-01-01T00:00:00Z"))
+                    .body(MediaType.HTTP_RESPONSE, http.toByteArray())
+                    .build());
+            writer.write(response("http://example.org/cat.png", "image/png", "meow"));
+        }
+
+        Warc2Html warc2Html = new Warc2Html();
+        try (InputStream stream = Files.newInputStream(warc)) {
+            warc2Html.load(warc.toString(), stream);
+        }
+        Path outDir = temp.newFolder("latin1").toPath();
+        assertEquals(2, warc2Html.writeTo(outDir).size());
+        assertArrayEquals("/* caf\u00e9 */ body { background: url(cat.png) }".getBytes(ISO_8859_1),
+                Files.readAllBytes(outDir.resolve("example.org/style.css")));
+    }
+
+    @Test
+    public void shardedExportMatchesSingleNode() throws Exception {
+        Path warcDir = temp.newFolder("warcs").toPath();
+        for (int w = 0; w < 2; w++) {
+            Path warc = warcDir.resolve("test-" + w + ".warc.gz");
+            try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), WarcCompression.GZIP)) {
+                for (int i = 0; i < 10; i++) {
+                    writer.write(response("http://example.org/" + i + "/index.html", "text/html",
+                            "<a href=/style.css>css</a><script src=/app.js></script>"));
+                    // same URL in every WARC so that paths need ~1 numbering
+                    writer.write(response("http://example.org/dup.html", "text/html", "<a href=/" + w + "/>" + i + "</a>"));
+                }
+                writer.write(response("http://example.org/style.css", "text/css", "body { background: url(/cat.png) }"));
+                writer.write(response("http://example.org/app.js", "application/javascript", "x.innerHTML = '<a href=\"/1/\">'"));
+                writer.write(response("http://example.org/cat.png", "image/png", "meow" + w));
+            }
+        }
+
+        Path single = temp.newFolder("single").toPath();
+        run("-o", single.toString(), "-wf", warcDir.toString());
+
+        Path index = temp.getRoot().toPath().resolve("index.jsonl");
+        run("-wf", warcDir.toString(), "--write-index", index.toString());
+
+        Path sharded = temp.newFolder("sharded").toPath();
+        List<Process> workers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            workers.add(start("-o", sharded.toString(), "--read-index", index.toString(), "--shard", i + "/3"));
+        }
+        for (Process worker : workers) {
+            assertEquals(0, worker.waitFor());
+        }
+        run("-o", sharded.toString(), "--read-index", index.toString(), "--merge-shards", "3");
+
+        assertEquals(47, listFiles(single).size());
+        assertEquals(listFiles(single), listFiles(sharded));
+        for (Path file : listFiles(single)) {
+            assertEquals(file.toString(), Files.readString(single.resolve(file)), Files.readString(sharded.resolve(file)));
+        }
+    }
+
+    @Test
+    public void externalIndexMatchesInMemoryIndex() throws IOException {
+        Path warc = temp.newFile("external.warc.gz").toPath();
+        try (WarcWriter writer = new WarcWriter(FileChannel.open(warc, WRITE, CREATE), WarcCompression.GZIP)) {
+            // enough resources for several runs at the minimum memory budget
+            for (int i = 0; i < 300; i++) {
+                writer.write(response("http://example.org/" + (i % 7) + "/index.html", "text/html",
+                        "<a href=/Dup.html>dup</a><a href=/Dup~1.html>dup~1</a><a href=/old>old</a><img src=/cat.png>"));
+                writer.write(response(i % 2 == 0 ? "http://example.org/dup.html" : "http://example.org/Dup.html",
+                        "text/html", "<p>" + i + "</p>"));
+            }
+            // natural paths that look numbered, loaded after the collisions have taken their names
+            writer.write(response("http://example.org/Dup~1.html", "text/html", "<p>natural</p>"));
+            writer.write(response("http://example.org/0/index~2.html", "text/html", "<p>natural</p>"));
+            writer.write(response("http://example.org/cat.png", "image/png", "meow"));
+            writer.write(redirect("http://example.org/old", "/0/index.html"));
+            // a chain, a loop, a redirect shadowed by a capture and one leaving the collection
+            writer.write(redirect("http://example.org/older", "/old"));
+            writer.write(redirect("http://example.org/x", "/y"));
+            writer.write(redirect("http://example.org/y", "/x"));
+            writer.write(redirect("http://example.org/cat.png", "/dog.png"));
+            writer.write(redirect("http://example.org/gone", "http://elsewhere.example/"));
+        }
+
+        Path indexDir = temp.newFolder("index").toPath();
+        Warc2Html inMemory = new Warc2Html();
+        Warc2Html external = new Warc2Html();
+        external.setIndexMemory(ExternalIndex.MIN_MEMORY_BUDGET);
+        external.setIndexTempDir(indexDir);
+        for (Warc2Html warc2Html : List.of(inMemory, external)) {
+            try (InputStream stream = Files.newInputStream(warc)) {
+                warc2Html.load(warc.toString(), stream);
+            }
+            warc2Html.resolveRedirects();
+        }
+        // switching index after loading would drop what was already loaded
+        assertThrows(IllegalStateException.class, () -> inMemory.setIndexMemory(ExternalIndex.MIN_MEMORY_BUDGET));
+        assertThrows(IllegalStateException.class, () -> external.setIndexTempDir(indexDir));
+
+        assertEquals(Map.of("example.org/old", "example.org/0/index~42.page", "example.org/older", "example.org/0/index~42.page"),
+                external.redirectMap());
+        assertEquals(inMemory.redirectMap(), external.redirectMap());
+        Path inMemoryMap = temp.newFile("in-memory.map").toPath();
+        Path externalMap = temp.newFile("external.map").toPath();
+        inMemory.writeRedirectMap(inMemoryMap);
+        external.writeRedirectMap(externalMap);
+        assertEquals(Files.readAllLines(inMemoryMap), Files.readAllLines(externalMap));
+        Path inMemoryOut = temp.newFolder("in-memory").toPath();
+        Path externalOut = temp.newFolder("external").toPath();
+        assertEquals(inMemory.writeTo(inMemoryOut), external.writeTo(externalOut));
+        assertEquals(listFiles(inMemoryOut), listFiles(externalOut));
+        for (Path file : listFiles(inMemoryOut)) {
+            assertEquals(file.toString(), Files.readString(inMemoryOut.resolve(file)), Files.readString(externalOut.resolve(file)));
+        }
+        assertEquals("<a href=\"../Dup~299.page\">dup</a><a href=\"../Dup~1~1.page\">dup~1</a>"
+                        + "<a href=\"index~42.page\">old</a><img src=\"../cat.png\">",
+                Files.readString(externalOut.resolve("example.org/0/index.page")));
+        assertEquals("<p>natural</p>", Files.readString(externalOut.resolve("example.org/0/index~2~1.page")));
+
+        external.close();
+        try (Stream<Path> files = Files.list(indexDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    private static void run(String... args) throws Exception {
+        assertEquals(0, start(args).waitFor());
+    }
+
+    private static Process start(String... args) throws IOException {
+        List<String> command = new ArrayList<>(List.of(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), Warc2Html.class.getName()));
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+    }
+
+    private static List<Path> listFiles(Path dir) throws IOException {
+        try (Stream<Path> stream = Files.walk(dir)) {
+            return stream.filter(Files::isRegularFile).map(dir::relativize).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static WarcResponse redirect(String url, String location) {
+        return new WarcResponse.Builder(URI.create(url))
+                .date(Instant.parse("2021-01-01T00:00:00Z"))
+                .body(MediaType.HTTP_RESPONSE, ("HTTP/1.1 301 Moved\r\nLocation: " + location + "\r\n\r\n").getBytes(UTF_8))
+                .build();
+    }
+
+    private static WarcResponse response(String url, String type, String payload) {
+        byte[] http = ("HTTP/1.1 200 OK\r\nContent-Type: " + type + "\r\n\r\n" + payload).getBytes(UTF_8);
+        return new WarcResponse.Builder(URI.create(url))
+                .date(Instant.parse("2021-01-01T00:00:00Z"))
+                .body(MediaType.HTTP_RESPONSE, http)
+                .build();
+    }
+}